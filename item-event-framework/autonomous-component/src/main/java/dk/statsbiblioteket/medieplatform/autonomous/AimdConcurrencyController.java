@@ -0,0 +1,175 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controller adjusting the number of workers an autonomous component runs concurrently, by additive increase and
+ * multiplicative decrease (AIMD).
+ * <p>
+ * The work is observed in windows, each the length of the current limit in completed workers. At the end of a window,
+ * the limit is increased by one, unless the backends have become slow, in which case it is decreased, or the
+ * throughput of the window have dropped compared to the previous window, in which case it is kept. When a call to a
+ * backend fails, the limit is decreased at once, but only once per window, as the calls in flight when the backend
+ * became overloaded will fail as well.
+ * <p>
+ * The backends are considered slow when the moving average of the latency of the backend calls exceeds the lowest
+ * average seen by the latency tolerance factor. The lowest average slowly drifts towards the current average, so the
+ * limit is not kept low forever, if the backends have become permanently slower.
+ */
+public class AimdConcurrencyController {
+
+    private static Logger log = LoggerFactory.getLogger(AimdConcurrencyController.class);
+
+    /** The weight of the latest latency in the moving average */
+    private static final double LATENCY_SMOOTHING = 0.2;
+    /** The fraction of the throughput of the previous window a window must achieve for the limit to be increased */
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+    /**
+     * The factor the lowest latency grows by in each window, so a backend that have become permanently slower is
+     * eventually accepted as normal
+     */
+    private static final double BASELINE_DRIFT = 1.05;
+
+    private final int minimum;
+    private final int maximum;
+    private final double backoffFactor;
+    private final double latencyTolerance;
+
+    private int limit;
+    private int windowCompletions = 0;
+    private long windowStart;
+    private double previousThroughput = 0;
+    private boolean decreasedInWindow = false;
+    private double averageLatency = -1;
+    private double baselineLatency = Double.MAX_VALUE;
+
+    /**
+     * Create a controller starting at the minimum limit, halving the limit on overload, and considering the backends
+     * slow at twice the lowest latency
+     *
+     * @param minimum the lowest number of concurrent workers, at least 1
+     * @param maximum the highest number of concurrent workers
+     */
+    public AimdConcurrencyController(int minimum, int maximum) {
+        this(minimum, maximum, 0.5, 2.0);
+    }
+
+    /**
+     * Create a controller starting at the minimum limit
+     *
+     * @param minimum          the lowest number of concurrent workers, at least 1
+     * @param maximum          the highest number of concurrent workers
+     * @param backoffFactor    the factor the limit is multiplied by when decreased, between 0 and 1
+     * @param latencyTolerance the factor the backend latency can grow by before the backends are considered slow
+     */
+    public AimdConcurrencyController(int minimum, int maximum, double backoffFactor, double latencyTolerance) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new IllegalArgumentException(
+                    "Invalid bounds, minimum " + minimum + " and maximum " + maximum + " for the number of workers");
+        }
+        if (backoffFactor <= 0 || backoffFactor >= 1) {
+            throw new IllegalArgumentException("The backoff factor must be between 0 and 1, but was " + backoffFactor);
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.backoffFactor = backoffFactor;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = minimum;
+        this.windowStart = currentTimeMillis();
+    }
+
+    /**
+     * Get the number of workers that should currently run concurrently
+     *
+     * @return the current limit, between the minimum and the maximum
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Record that a worker have completed
+     */
+    public synchronized void workerCompleted() {
+        windowCompletions++;
+        if (windowCompletions < limit) {
+            return;
+        }
+        long now = currentTimeMillis();
+        double throughput = windowCompletions * 1000.0 / Math.max(1, now - windowStart);
+        if (isLatencyDegraded()) {
+            decrease("the backend latency have grown from " + Math.round(baselineLatency) + " to "
+                     + Math.round(averageLatency) + " ms");
+        } else if (throughput < previousThroughput * THROUGHPUT_TOLERANCE) {
+            log.debug("Throughput dropped from {} to {} items/s, keeping the limit at {}", previousThroughput,
+                      throughput, limit);
+            startWindow(throughput);
+        } else if (limit < maximum) {
+            limit++;
+            log.debug("Increased the limit to {} workers", limit);
+            startWindow(throughput);
+        } else {
+            startWindow(throughput);
+        }
+    }
+
+    /**
+     * Record a successful call to a backend, such as storing an event or querying for items
+     *
+     * @param latency the number of milliseconds the call took
+     */
+    public synchronized void backendCallSucceeded(long latency) {
+        if (averageLatency < 0) {
+            averageLatency = latency;
+        } else {
+            averageLatency = LATENCY_SMOOTHING * latency + (1 - LATENCY_SMOOTHING) * averageLatency;
+        }
+        baselineLatency = Math.min(baselineLatency, averageLatency);
+    }
+
+    /**
+     * Record a failed call to a backend. This decreases the limit, unless the limit have already been decreased in the
+     * current window.
+     */
+    public synchronized void backendCallFailed() {
+        if (decreasedInWindow) {
+            return;
+        }
+        decrease("a backend call failed");
+    }
+
+    private boolean isLatencyDegraded() {
+        return averageLatency >= 0 && averageLatency > baselineLatency * latencyTolerance;
+    }
+
+    private void decrease(String reason) {
+        int newLimit = Math.max(minimum, (int) (limit * backoffFactor));
+        if (newLimit != limit) {
+            log.info("Decreased the limit from {} to {} workers, as {}", limit, newLimit, reason);
+        }
+        limit = newLimit;
+        //The throughput at the old limit cannot be compared with the throughput at the new limit
+        startWindow(0);
+        decreasedInWindow = true;
+    }
+
+    private void startWindow(double throughput) {
+        previousThroughput = throughput;
+        windowCompletions = 0;
+        windowStart = currentTimeMillis();
+        decreasedInWindow = false;
+        if (baselineLatency < averageLatency) {
+            baselineLatency = Math.min(averageLatency, baselineLatency * BASELINE_DRIFT);
+        }
+    }
+
+    /**
+     * Get the current time. Overridable for tests.
+     *
+     * @return the current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -1,20 +1,26 @@
 package dk.statsbiblioteket.medieplatform.autonomous;
 
 import com.netflix.curator.framework.CuratorFramework;
-import com.netflix.curator.framework.recipes.locks.InterProcessLock;
-import com.netflix.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 import org.slf4j.Logger;
 
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is the Autonomous Component main class. It should contain all the harnessing stuff that allows a system to work
@@ -23,7 +29,7 @@ import java.util.concurrent.TimeUnit;
 public class AutonomousComponent<T extends Item> implements Callable<CallResult<T>> {
 
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(AutonomousComponent.class);
-    private final CuratorFramework lockClient;
+    private final LockProvider lockProvider;
     private final List<String> oldEvents;
     private final List<String> itemTypes;
     private final long timeoutSBOI;
@@ -36,19 +42,46 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
     private final int workQueueMaxLength;
     private final List<String> pastSuccessfulEvents;
     private final List<String> futureEvents;
-    private boolean paused = false;
-    private boolean stopped = false;
+    private volatile boolean paused = false;
+    private volatile boolean stopped = false;
+    private volatile boolean locksLost = false;
+    private volatile boolean workersStopped = false;
+    private volatile boolean cancelRequested = false;
+    private volatile long lockSessionId = 0;
+    private final Lock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
     private final Integer maxResults;
     private final EventTrigger<T> eventTrigger;
     private final EventStorer<T> eventStorer;
+    private DistributedWorkQueue<T> workQueue = null;
+    private ItemSharding sharding = null;
+    private HeldElsewhereCache heldElsewhere = null;
+    private ItemCostEstimator<T> costEstimator = null;
+    private int costLookahead = 0;
+    private AimdConcurrencyController concurrencyController = null;
+    private boolean virtualThreads = false;
+    private long reconnectTimeout = 60 * 1000;
+    private EventOutbox<T> outbox = null;
+    private File checkpointDirectory = null;
+    private final SchedulingMetrics metrics;
+    private ResultListener<T> resultListener = null;
 
 
     public AutonomousComponent(RunnableComponent<T> runnable, CuratorFramework lockClient, int simultaneousProcesses,
                                Integer workQueueMaxLength, List<String> pastSuccessfulEvents, List<String> futureEvents,
                                List<String> oldEvents, List<String> itemTypes, long timeoutSBOI, long timeoutBatch,
                                long workerTimout, Integer maxResults, EventTrigger<T> eventTrigger, EventStorer<T> eventStorer) {
+        this(runnable, new CuratorLockProvider(lockClient), simultaneousProcesses, workQueueMaxLength,
+             pastSuccessfulEvents, futureEvents, oldEvents, itemTypes, timeoutSBOI, timeoutBatch, workerTimout,
+             maxResults, eventTrigger, eventStorer);
+    }
+
+    public AutonomousComponent(RunnableComponent<T> runnable, LockProvider lockProvider, int simultaneousProcesses,
+                               Integer workQueueMaxLength, List<String> pastSuccessfulEvents, List<String> futureEvents,
+                               List<String> oldEvents, List<String> itemTypes, long timeoutSBOI, long timeoutBatch,
+                               long workerTimout, Integer maxResults, EventTrigger<T> eventTrigger, EventStorer<T> eventStorer) {
 
-        this.lockClient = lockClient;
+        this.lockProvider = lockProvider;
 
         this.oldEvents = oldEvents;
 
@@ -68,37 +101,44 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
         this.eventTrigger = eventTrigger;
         this.eventStorer = eventStorer;
         concurrencyConnectionStateListener = new ConcurrencyConnectionStateListener(this);
-        this.lockClient.getConnectionStateListenable().addListener(concurrencyConnectionStateListener);
+        this.lockProvider.addConnectionStateListener(concurrencyConnectionStateListener);
         this.maxResults = maxResults;
+        this.metrics = new SchedulingMetrics(runnable.getComponentName());
     }
 
     /**
-     * Utility method to release locks, ignoring any errors being thrown. Will continue to release the lock until
-     * errors
-     * are being thrown.
+     * Utility method to release locks, ignoring any errors being thrown.
      *
      * @param lock the lock to release
      */
-    protected static void releaseQuietly(InterProcessLock lock) {
-        boolean released = false;
-        while (!released) {
+    protected static void releaseQuietly(NamedLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (Exception e) {
+            log.warn("Caught exception while trying to release lock", e);
+        }
+    }
+
+    /**
+     * Close an iterator, if it is closeable, ignoring any errors being thrown
+     *
+     * @param iterator the iterator to close
+     */
+    private static void closeQuietly(Iterator<?> iterator) {
+        if (iterator instanceof Closeable) {
             try {
-                lock.release();
-            } catch (IllegalStateException e) {
-                released = true;
-            } catch (Exception e) {
-                log.warn("Caught exception while trying to release lock", e);
-                return;
+                ((Closeable) iterator).close();
+            } catch (IOException e) {
+                log.warn("Caught exception while trying to close iterator", e);
             }
         }
     }
 
-    protected static boolean acquireQuietly(InterProcessLock lock, long timeout) throws LockingException {
-        try {
-            return lock.acquire(timeout, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            throw new LockingException("Failed to acquire lock", e);
-        }
+    protected static boolean acquireQuietly(NamedLock lock, long timeout) throws LockingException {
+        return lock.acquire(timeout);
     }
 
     /**
@@ -143,13 +183,19 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
      * <ul>
      * <li> Locks the SBOI</li>
      * <li> gets the batches in the right state</li>
-     * <li> attempts to lock it</li>
-     * <li> when sufficient batches are locked</li>
-     * <li> do the work on the batches and store the results for each</li>
-     * <li> when all work is completed, unlock all the batches</li>
+     * <li> attempts to lock them, until the work queue is full</li>
      * <li> unlock sboi</li>
+     * <li> do the work on the batches and store the results for each</li>
+     * <li> whenever a worker completes, unlock the batch, and lock the SBOI to lock the next batch in the right
+     * state</li>
+     * <li> when no more batches can be found and all work is completed, return</li>
      * </ul>
      *
+     * The work queue holds at most workQueueMaxLength locked items, of which simultaneousProcesses are worked on
+     * concurrently. As the queue is refilled as soon as a worker completes, a single slow batch does not keep the
+     * other threads idle. The SBOI is only locked while looking for and locking batches, so other instances of the
+     * component can find work while this instance works.
+     *
      * @return true if a batch was succesfully worked on. False if no batch was ready
      * @throws CouldNotGetLockException if no lock could be achieved within the set timeouts. This is not an anormal
      *                                  situation, as it just means that all the relevant batches are already being
@@ -160,113 +206,340 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
     @Override
     public CallResult<T> call() throws LockingException, CouldNotGetLockException, CommunicationException {
 
-        InterProcessLock SBOILock = null;
+        NamedLock SBOILock = null;
+        PrefetchingIterator<T> discovered = null;
+        ExecutorService pool = null;
         CallResult<T> result = new CallResult<>();
-        Map<AutonomousWorker<T>, InterProcessLock> workers = new HashMap<>();
+        Map<AutonomousWorker<T>, NamedLock> workers = new HashMap<>();
         try {
             log.info("Starting {}",runnable.getComponentName());
+            metrics.polls.increment();
+            resetLockServerConnectionState();
+            replayOutbox();
             //lock SBOI for this component name
-            SBOILock = new InterProcessSemaphoreMutex(lockClient, getSBOILockpath(runnable));
-            try {
-                boolean sboi_locked = acquireQuietly(SBOILock, timeoutSBOI);
-                if (!sboi_locked) {
-                    throw new CouldNotGetLockException("Could not get lock of SBOI, so returning");
-                }
+            SBOILock = lockProvider.getLock(getSBOILockpath(runnable));
+            boolean sboi_locked = acquireSBOILock(SBOILock);
+            if (!sboi_locked) {
+                throw new CouldNotGetLockException("Could not get lock of SBOI, so returning");
+            }
 
-                log.debug("SBOI locked, quering for items");
-                //get items, lock n, release the SBOI
-                EventTrigger.Query<T> query = makeQuery();
-                Iterator<T> items = eventTrigger.getTriggeredItems(query);
-                //for each batch
-                while (items.hasNext()) {
-                    T item = items.next();
-
-                    log.info("Found item {}", item.getFullID());
-                    //attempt to lock
-                    InterProcessLock batchlock = new InterProcessSemaphoreMutex(
-                            lockClient, getBatchLockPath(runnable, item));
-                    boolean success = acquireQuietly(batchlock, timeoutBatch);
-                    if (success) {//if lock gotten
-                        log.info("Item {} locked, creating a worker", item.getFullID());
-                        if (maxResults != null) {
-                            log.debug("Worker will report a maximum of {} results.", maxResults);
-                        }
-                        AutonomousWorker<T> worker = new AutonomousWorker<>(
-                                runnable,
-                                new ResultCollector(runnable.getComponentName(), runnable.getComponentVersion(), maxResults),
-                                item, eventStorer);
-                        workers.put(worker, batchlock);
-                        if (workers.size() >= workQueueMaxLength) {
-                            log.debug("We now have sufficient workers, look for no more items");
-                            break;
-                        }
-                    } else {
-                        log.info("Item {} already locked, so ignoring.", item.getFullID());
-                    }
-                }
-            } catch (RuntimeException runtimeException) {
-                for (InterProcessLock interProcessLock : workers.values()) {
-                    releaseQuietly(interProcessLock);
+            log.debug("SBOI locked, quering for items");
+            long queryStart = System.currentTimeMillis();
+            Iterator<T> triggered = findItems();
+            //Discover items in the background, while the items already found are locked and worked on. As the items
+            //are found lazily, the query time is recorded by the background thread, when it have read all the items
+            discovered = new PrefetchingIterator<>(triggered, workQueueMaxLength,
+                                                   "discovery-" + runnable.getComponentName(), metrics.triggerQuery,
+                                                   System.currentTimeMillis() - queryStart);
+            Iterator<T> items = discovered;
+            if (sharding != null && workQueue == null) {
+                try {
+                    sharding.refresh();
+                } catch (LockingException e) {
+                    log.warn("Failed to read the instances of the component, so using the last known instances", e);
                 }
-                throw runtimeException;
+                items = sharding.ownItemsFirst(items, workQueueMaxLength);
+            }
+            if (costEstimator != null && costLookahead > 0) {
+                log.debug("Ordering the next {} items by estimated cost", costLookahead);
+                items = new CostOrderedIterator<>(items, costEstimator, costLookahead);
             }
 
-            if (workers.isEmpty()){ //Nothing more to do
+            pool = BoundedExecutorService.newBoundedExecutor(simultaneousProcesses, virtualThreads);
+            Map<AutonomousWorker<T>, Future<?>> futures = new HashMap<>();
+            Queue<AutonomousWorker<T>> completed = new ConcurrentLinkedQueue<>();
+            //Fill the work queue, starting each worker as soon as its item is claimed
+            boolean exhausted;
+            try {
+                exhausted = claimItems(items, workers, pool, futures, completed);
+            } catch (CommunicationException | RuntimeException e) {
+                if (workers.isEmpty()) {
+                    throw e;
+                }
+                //Some workers have already started, so let them complete
+                log.warn("Failed to find further items, so completing the work in progress", e);
+                exhausted = true;
+            } finally {
+                releaseQuietly(SBOILock);
+            }
+            if (workers.isEmpty()) { //Nothing more to do
                 log.info("No Items locked, so nothing further to do");
                 return result;
-            } else {
-                checkLockServerConnectionState();
-                ExecutorService pool = Executors.newFixedThreadPool(simultaneousProcesses);
-                try {
-                    ArrayList<Future<?>> futures = new ArrayList<>();
-                    for (AutonomousWorker<T> autonomousWorker : workers.keySet()) {
-                        log.info("Submitting worker for Item {}", autonomousWorker.getItem().getFullID());
-                        concurrencyConnectionStateListener.add(autonomousWorker);
-                        Future<?> future = pool.submit(autonomousWorker);
-                        futures.add(future);
-                    }
-                    log.debug("Shutting down the pool, and waiting for the workers to terminate");
-                    pool.shutdown();
-                    //The wait loop for the running threads
-                    long start = System.currentTimeMillis();
-                    boolean allDone = false;
-                    while (!allDone) {
-                        log.trace("Waiting to terminate");
-                        allDone = true;
-                        for (Future<?> future : futures) {
-                            allDone = allDone && future.isDone();
-                        }
-                        checkLockServerConnectionState(pool);
+            }
+            checkLockServerConnectionState(workers, futures, pool);
+            while (true) {
+                submitWorkers(workers, pool, futures, completed);
+                if (futures.isEmpty()) {
+                    break;
+                }
+                log.trace("Waiting for workers to complete");
+                long timeout = timeUntilNextDeadline(futures.keySet());
+                if (!exhausted && workers.size() < workQueueMaxLength) {
+                    //The last attempt to refill the work queue failed to lock the SBOI, so try again soon
+                    timeout = Math.min(timeout, pollTime);
+                }
+                awaitCompletionOrStateChange(completed, timeout);
+                checkLockServerConnectionState(workers, futures, pool);
+                //Collect the completed workers, and release their items
+                AutonomousWorker<T> autonomousWorker;
+                while ((autonomousWorker = completed.poll()) != null) {
+                    log.info("Worker for Item {} have completed", autonomousWorker.getItem().getFullID());
+                    futures.remove(autonomousWorker);
+                    ResultSummary summary = new ResultSummary(autonomousWorker.getResultCollector());
+                    result.addResult(autonomousWorker.getItem(), summary);
+                    notifyResultListener(autonomousWorker.getItem(), summary);
+                    recordCompletion(autonomousWorker);
+                    concurrencyConnectionStateListener.remove(autonomousWorker);
+                    releaseQuietly(workers.remove(autonomousWorker));
+                }
+                cancelTimedOutWorkers(futures);
+                //Refill the work queue
+                if (!exhausted && workers.size() < workQueueMaxLength) {
+                    if (acquireSBOILock(SBOILock)) {
                         try {
-                            Thread.sleep(pollTime);
-                        } catch (InterruptedException e) {
-                            //okay, continue
-                        }
-                        if (System.currentTimeMillis() - start > workerTimout) {
-                            log.error("Worker timeout exceeded (" + workerTimout + "ms), shutting down all threads. We still need to wait for them" + " to terminate, however.");
-                            pool.shutdownNow();
-                            for (Future<?> future : futures) {
-                                future.cancel(true);
+                            exhausted = claimItems(items, workers, pool, futures, completed);
+                        } catch (CommunicationException | RuntimeException e) {
+                            log.warn("Failed to find further items, so completing the work in progress", e);
+                            if (concurrencyController != null && e instanceof CommunicationException) {
+                                concurrencyController.backendCallFailed();
                             }
+                            exhausted = true;
+                        } finally {
+                            releaseQuietly(SBOILock);
                         }
+                    } else {
+                        log.debug("Could not get lock of SBOI, so not looking for further items now");
                     }
-                    log.info("All is now done, all workers have completed");
-                    for (AutonomousWorker<T> autonomousWorker : workers.keySet()) {
-                        result.addResult(autonomousWorker.getItem(), autonomousWorker.getResultCollector());
-                    }
-                } finally {
-                    //clean up pool?
                 }
             }
+            log.info("All is now done, all workers have completed");
         } finally {
-            for (InterProcessLock interProcessLock : workers.values()) {
-                releaseQuietly(interProcessLock);
+            if (discovered != null) {
+                discovered.close();
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+            for (Map.Entry<AutonomousWorker<T>, NamedLock> worker : workers.entrySet()) {
+                concurrencyConnectionStateListener.remove(worker.getKey());
+                releaseQuietly(worker.getValue());
             }
             releaseQuietly(SBOILock);
         }
         return result;
     }
 
+    /**
+     * Lock items from the triggered items, and create workers for them, until the work queue is full or no more items
+     * can be found. The SBOI must be locked while doing this. As the triggered items might have been found before
+     * the last time the SBOI was locked, each item is checked to still be triggered, after it have been locked.
+     *
+     * Each worker is submitted as soon as it is created, if the concurrency limit allows.
+     *
+     * @param items     the triggered items
+     * @param workers   the work queue, mapping the workers to the locks of their items
+     * @param pool      the pool running the workers
+     * @param futures   the submitted workers
+     * @param completed the queue the workers are added to when they complete
+     *
+     * @return true if there are no more items to claim
+     * @throws LockingException       if the locking framework fails
+     * @throws CommunicationException if communication with SBOI fails
+     */
+    private boolean claimItems(Iterator<T> items, Map<AutonomousWorker<T>, NamedLock> workers, ExecutorService pool,
+                               Map<AutonomousWorker<T>, Future<?>> futures, Queue<AutonomousWorker<T>> completed) throws
+                                                                                                        LockingException,
+                                                                                                        CommunicationException {
+        while (workers.size() < workQueueMaxLength) {
+            if (workersStopped) {
+                log.info("The workers have been stopped, so look for no more items");
+                return true;
+            }
+            if (!items.hasNext()) {
+                return true;
+            }
+            T item = items.next();
+            metrics.candidates.increment();
+
+            log.info("Found item {}", item.getFullID());
+            if (outbox != null && outbox.isPending(item, runnable.getEventID())) {
+                log.info("Item {} have a result waiting in the outbox, so ignoring.", item.getFullID());
+                continue;
+            }
+            if (heldElsewhere != null && workQueue == null
+                && heldElsewhere.contains(getBatchLockPath(runnable, item))) {
+                metrics.lockedElsewhere.increment();
+                log.info("Item {} recently found locked elsewhere, so ignoring.", item.getFullID());
+                continue;
+            }
+            //attempt to lock, skipping the item if it is locked by someone else
+            NamedLock batchlock = createItemLock(item);
+            long lockStart = System.currentTimeMillis();
+            boolean success = acquireQuietly(batchlock, timeoutBatch);
+            long lockLatency = System.currentTimeMillis() - lockStart;
+            metrics.itemLock.observe(lockLatency);
+            if (success) {//if lock gotten
+                log.debug("Item {} locked in {} ms", item.getFullID(), lockLatency);
+                T current;
+                try {
+                    current = getStillTriggeredItem(item);
+                } catch (CommunicationException | RuntimeException e) {
+                    releaseQuietly(batchlock);
+                    throw e;
+                }
+                if (current == null) {
+                    log.info("Item {} have been worked on since it was found, so ignoring.", item.getFullID());
+                    releaseQuietly(batchlock);
+                    continue;
+                }
+                log.info("Item {} locked, creating a worker", item.getFullID());
+                if (maxResults != null) {
+                    log.debug("Worker will report a maximum of {} results.", maxResults);
+                }
+                AutonomousWorker<T> worker = new AutonomousWorker<>(
+                        runnable,
+                        new ResultCollector(runnable.getComponentName(), runnable.getComponentVersion(), maxResults),
+                        current, eventStorer, workerTimout);
+                worker.setOutbox(outbox);
+                if (checkpointDirectory != null) {
+                    worker.setCheckpoint(new FileCheckpoint(checkpointDirectory, current));
+                }
+                worker.setMetrics(metrics);
+                metrics.claimed.increment();
+                workers.put(worker, batchlock);
+                submitWorkers(workers, pool, futures, completed);
+            } else {
+                metrics.lockedElsewhere.increment();
+                if (heldElsewhere != null && workQueue == null) {
+                    heldElsewhere.add(getBatchLockPath(runnable, item), item);
+                }
+                log.info("Item {} already locked, so ignoring. Attempting to lock took {} ms", item.getFullID(),
+                         lockLatency);
+            }
+        }
+        log.debug("We now have sufficient workers, look for no more items");
+        return false;
+    }
+
+    /**
+     * Find the items to work on. If a distributed work queue is used, the items are taken from the queue, and only the
+     * instance elected as publisher queries the event trigger, to publish the triggered items to the queue.
+     *
+     * @return the items to work on
+     * @throws CommunicationException if communication with SBOI fails
+     * @throws LockingException       if the distributed work queue could not be read
+     */
+    private Iterator<T> findItems() throws CommunicationException, LockingException {
+        EventTrigger.Query<T> query = makeQuery();
+        if (workQueue == null) {
+            if (heldElsewhere != null) {
+                query.getIgnoredDomsIDs().addAll(heldElsewhere.getDomsIDs());
+            }
+            return eventTrigger.getTriggeredItems(query);
+        }
+        if (workQueue.isPublisher()) {
+            log.debug("This instance is the publisher of the work queue, so publishing the triggered items");
+            workQueue.publish(eventTrigger.getTriggeredItems(query));
+        }
+        return workQueue.getQueuedItems();
+    }
+
+    /**
+     * Create the lock for an item. This is a lease on the item if a distributed work queue is used, otherwise a mutex
+     * for the item for this component.
+     *
+     * @param item the item to lock
+     *
+     * @return the lock, not yet acquired
+     */
+    private NamedLock createItemLock(T item) {
+        if (workQueue != null) {
+            return workQueue.getLease(item);
+        }
+        return lockProvider.getLock(getBatchLockPath(runnable, item));
+    }
+
+    /**
+     * Submit the claimed workers not yet submitted, as long as the concurrency limit allows
+     *
+     * @param workers   the work queue, mapping the workers to the locks of their items
+     * @param pool      the pool running the workers
+     * @param futures   the submitted workers
+     * @param completed the queue the workers are added to when they complete
+     */
+    private void submitWorkers(Map<AutonomousWorker<T>, NamedLock> workers, ExecutorService pool,
+                               Map<AutonomousWorker<T>, Future<?>> futures, Queue<AutonomousWorker<T>> completed) {
+        if (workersStopped) {
+            return;
+        }
+        for (AutonomousWorker<T> autonomousWorker : workers.keySet()) {
+            if (futures.size() >= getConcurrencyLimit()) {
+                break;
+            }
+            if (!futures.containsKey(autonomousWorker)) {
+                log.info("Submitting worker for Item {}", autonomousWorker.getItem().getFullID());
+                concurrencyConnectionStateListener.add(autonomousWorker);
+                if (workersStopped) {
+                    autonomousWorker.setStop(true);
+                    autonomousWorker.getCancellationToken().cancel();
+                }
+                WorkerTask task = new WorkerTask(autonomousWorker, completed);
+                pool.execute(task);
+                futures.put(autonomousWorker, task);
+            }
+        }
+    }
+
+    /**
+     * Acquire the SBOI lock, recording the time waiting for it
+     *
+     * @param SBOILock the SBOI lock
+     *
+     * @return true if the lock was acquired
+     * @throws LockingException if the locking framework fails
+     */
+    private boolean acquireSBOILock(NamedLock SBOILock) throws LockingException {
+        long start = System.currentTimeMillis();
+        try {
+            return acquireQuietly(SBOILock, timeoutSBOI);
+        } finally {
+            metrics.sboiLockWait.observeSince(start);
+        }
+    }
+
+    /**
+     * Query the event trigger for the item again, to check that it is still triggered. Another instance of this
+     * component might have worked on the item, and released it, since it was found.
+     *
+     * @param item the item to check
+     *
+     * @return the current edition of the item, or null if the item is no longer triggered
+     * @throws CommunicationException if communication with SBOI fails
+     */
+    private T getStillTriggeredItem(T item) throws CommunicationException {
+        EventTrigger.Query<T> query = makeQuery();
+        query.getItems().add(item);
+        long start = System.currentTimeMillis();
+        Iterator<T> triggeredItems = eventTrigger.getTriggeredItems(query);
+        T result = null;
+        try {
+            while (triggeredItems.hasNext()) {
+                T triggeredItem = triggeredItems.next();
+                if (triggeredItem.equals(item)) {
+                    result = triggeredItem;
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(triggeredItems);
+        }
+        metrics.triggerRecheck.observeSince(start);
+        if (concurrencyController != null) {
+            concurrencyController.backendCallSucceeded(System.currentTimeMillis() - start);
+        }
+        return result;
+    }
+
     private EventTrigger.Query<T> makeQuery() {
         EventTrigger.Query<T> query = new EventTrigger.Query<T>();
         if (pastSuccessfulEvents != null) {
@@ -289,54 +562,431 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
 
 
     /**
-     * Check the lock server connection state. If the connection is lost, all our locks are dirty, so the execution
-     * should stop. An CommunicationException is thrown in this case. If the connection is suspended, enter into an
-     * potentially infinite loop waiting for the connection to either be restored or lost.
+     * Get the time until the first deadline of the running workers is exceeded
+     *
+     * @param running the running workers
      *
-     * @throws CommunicationException if the connection was lost
+     * @return the number of milliseconds until a worker should be cancelled
      */
-    private void checkLockServerConnectionState() throws CommunicationException {
-        checkLockServerConnectionState(null);
+    private long timeUntilNextDeadline(Collection<AutonomousWorker<T>> running) {
+        long nextDeadline = Long.MAX_VALUE;
+        for (AutonomousWorker<T> autonomousWorker : running) {
+            CancellationToken cancellationToken = autonomousWorker.getCancellationToken();
+            if (!cancellationToken.isCancelled()) {
+                nextDeadline = Math.min(nextDeadline, cancellationToken.getDeadline());
+            }
+        }
+        return nextDeadline - System.currentTimeMillis();
     }
 
     /**
-     * Check the lock server connection state. If the connection is lost, all our locks are dirty, so the execution
-     * should stop. An CommunicationException is thrown in this case. If the connection is suspended, enter into an
-     * potentially infinite loop waiting for the connection to either be restored or lost.
+     * Cancel the workers that have exceeded their deadline, or have been cancelled because the workers were stopped.
+     * Only these workers are cancelled, the rest are allowed to complete. The cancelled workers are interrupted, and
+     * must still terminate before their items are released.
      *
-     * @param pool this is the pool of executing threads. The threads will be stopped as best as the system is able, if
-     *             the connection is lost.
+     * @param running the running workers, and their tasks
+     */
+    private void cancelTimedOutWorkers(Map<AutonomousWorker<T>, Future<?>> running) {
+        cancelRequested = false;
+        for (Map.Entry<AutonomousWorker<T>, Future<?>> entry : running.entrySet()) {
+            AutonomousWorker<T> autonomousWorker = entry.getKey();
+            if (autonomousWorker.getCancellationToken().isCancelled() && !entry.getValue().isCancelled()) {
+                if (workersStopped) {
+                    log.warn("The workers have been stopped, so cancelling the worker for Item {}",
+                             autonomousWorker.getItem().getFullID());
+                } else {
+                    log.error("Worker timeout exceeded ({}ms) for Item {}, cancelling the worker. We still need to wait "
+                              + "for it to terminate, however.", workerTimout, autonomousWorker.getItem().getFullID());
+                }
+                autonomousWorker.getCancellationToken().cancel();
+                entry.getValue().cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Wait until a worker completes, the connection state to the lock server changes, the workers are stopped, or the
+     * timeout is exceeded.
      *
-     * @throws CommunicationException if the connection was lost
+     * @param completed the workers that have completed, and not yet been collected
+     * @param timeout   the max number of milliseconds to wait
      */
-    private void checkLockServerConnectionState(ExecutorService pool) throws CommunicationException {
-        checkStopped(pool);
-        while (paused && !stopped) {
+    private void awaitCompletionOrStateChange(Queue<AutonomousWorker<T>> completed, long timeout) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        stateLock.lock();
+        try {
+            while (completed.isEmpty() && !paused && !stopped && !locksLost && !cancelRequested && remaining > 0) {
+                remaining = stateChanged.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            //okay, continue
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the thread waiting for workers to complete
+     */
+    private void signalStateChanged() {
+        stateLock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * A previous invocation might have been stopped by a lost connection to the lock server. As this component can be
+     * invoked repeatedly, clear the stopped flag if the connection have since been reestablished. Locks taken in the
+     * previous invocation are gone, but the ones taken from now on are valid, as long as the session with the lock
+     * server is the same.
+     *
+     * @throws CommunicationException if the connection is still lost
+     */
+    private void resetLockServerConnectionState() throws CommunicationException {
+        if (stopped) {
+            if (!lockProvider.isConnected()) {
+                throw new CommunicationException("Lost connection to lock server");
+            }
+            stopped = false;
+        }
+        locksLost = false;
+        lockSessionId = lockProvider.getSessionId();
+    }
+
+    /**
+     * Check the lock server connection state. If the connection is suspended, wait for it to either be restored or
+     * lost. If the connection is lost, wait up to the reconnect timeout for it to be restored. While waiting, the
+     * workers hold their results. If the connection is not restored in time, all our locks are dirty, so the workers
+     * are stopped, and the execution should stop. An CommunicationException is thrown in this case.
+     * <p>
+     * If the connection was lost, and then restored, the session with the lock server might have expired, in which
+     * case the locks of the items are gone, and the items are locked again before the workers are resumed.
+     *
+     * @param workers the work queue, mapping the workers to the locks of their items
+     * @param futures the submitted workers
+     * @param pool    this is the pool of executing threads. The threads will be stopped as best as the system is able,
+     *                if the connection is lost. If null, the pool is not stopped.
+     *
+     * @throws CommunicationException if the connection was lost, and not restored in time
+     * @see #relockItems(Map, Map)
+     */
+    private void checkLockServerConnectionState(Map<AutonomousWorker<T>, NamedLock> workers,
+                                                Map<AutonomousWorker<T>, Future<?>> futures, ExecutorService pool)
+            throws CommunicationException {
+        stateLock.lock();
+        try {
+            long lostDeadline = -1;
+            while (paused || stopped) {
+                if (!stopped) {
+                    stateChanged.awaitUninterruptibly();
+                    continue;
+                }
+                if (lostDeadline < 0) {
+                    log.warn("Lost connection to lock server, waiting up to {} ms for it to be restored",
+                             reconnectTimeout);
+                    lostDeadline = System.currentTimeMillis() + reconnectTimeout;
+                }
+                long remaining = lostDeadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    abandonWork(workers, pool);
+                }
+                try {
+                    stateChanged.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abandonWork(workers, pool);
+                }
+            }
+            if (lostDeadline >= 0) {
+                log.info("Connection to lock server restored, resuming work");
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (locksLost) {
+            relockItems(workers, futures);
+        }
+    }
+
+    /**
+     * Lock the items of the workers again, after the connection to the lock server was lost and restored. If the
+     * session with the lock server survived, the old locks are still held, so they are kept, and the workers resumed.
+     * Otherwise the old locks are gone with the session, and another instance might have locked the items since. The
+     * old locks are released quietly, and the items locked again. The workers whose items are locked again are
+     * resumed. The other workers are stopped, so their results are kept in the outbox, if any, rather than preserved,
+     * and the ones not yet started are dropped.
+     *
+     * @param workers the work queue, mapping the workers to the locks of their items
+     * @param futures the submitted workers
+     */
+    private void relockItems(Map<AutonomousWorker<T>, NamedLock> workers,
+                             Map<AutonomousWorker<T>, Future<?>> futures) {
+        locksLost = false;
+        long sessionId = lockProvider.getSessionId();
+        if (sessionId != 0 && sessionId == lockSessionId) {
+            log.info("The session with the lock server survived the lost connection, so the {} items are still locked",
+                     workers.size());
+            if (!paused && !stopped) {
+                for (AutonomousWorker<T> autonomousWorker : workers.keySet()) {
+                    autonomousWorker.setPause(false);
+                }
+            }
+            return;
+        }
+        lockSessionId = sessionId;
+        log.warn("The locks were lost with the session with the lock server, so locking the {} items again",
+                 workers.size());
+        Iterator<Map.Entry<AutonomousWorker<T>, NamedLock>> iterator = workers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<AutonomousWorker<T>, NamedLock> entry = iterator.next();
+            AutonomousWorker<T> autonomousWorker = entry.getKey();
+            releaseQuietly(entry.getValue());
+            NamedLock batchlock = createItemLock(autonomousWorker.getItem());
+            boolean relocked;
             try {
-                Thread.sleep(pollTime);
-            } catch (InterruptedException e) {
+                //If someone else have locked the item since, it is theirs, so do not wait for it
+                relocked = acquireQuietly(batchlock, 0);
+            } catch (LockingException e) {
+                log.warn("Failed to lock item {} again", autonomousWorker.getItem().getFullID(), e);
+                relocked = false;
+            }
+            if (relocked) {
+                log.info("Item {} locked again", autonomousWorker.getItem().getFullID());
+                entry.setValue(batchlock);
+                if (!paused && !stopped) {
+                    autonomousWorker.setPause(false);
+                }
+            } else {
+                log.warn("Item {} could not be locked again, so the worker is stopped",
+                         autonomousWorker.getItem().getFullID());
+                entry.setValue(null);
+                autonomousWorker.setStop(true);
+                if (!futures.containsKey(autonomousWorker)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the workers, so their results are not preserved, and shut down the pool, if non-null. The locks of the
+     * items are kept, so they are released quietly when the call completes. If the session with the lock server have
+     * expired, they are gone already, but if the session survives, this lets other instances work on the items.
+     *
+     * @param workers the work queue, mapping the workers to the locks of their items
+     * @param pool    the pool of worker threads
+     *
+     * @throws CommunicationException always, as the connection is lost
+     */
+    private void abandonWork(Map<AutonomousWorker<T>, NamedLock> workers, ExecutorService pool)
+            throws CommunicationException {
+        concurrencyConnectionStateListener.stopWorkers();
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        throw new CommunicationException("Lost connection to lock server");
+    }
 
+    /**
+     * Use a distributed work queue, shared by all the instances of this component, to find and lock items. The queue
+     * must be started.
+     *
+     * @param workQueue the work queue, or null to query the event trigger and lock the items directly
+     */
+    public void setWorkQueue(DistributedWorkQueue<T> workQueue) {
+        this.workQueue = workQueue;
+    }
+
+    /**
+     * Shard the triggered items across the instances of this component, so each instance tries to lock the items
+     * assigned to it before the items of other instances. The sharding must be started. Not used with a distributed
+     * work queue, as the queue already assigns the items.
+     *
+     * @param sharding the sharding, or null to try to lock the items in the order they are found
+     */
+    public void setSharding(ItemSharding sharding) {
+        this.sharding = sharding;
+    }
+
+    /**
+     * Remember the items found locked by other instances of this component, and leave them out of the following polls
+     * until their locks are released. Not used with a distributed work queue.
+     *
+     * @param heldElsewhere the record of items held elsewhere, or null to try all triggered items on every poll
+     */
+    public void setHeldElsewhereCache(HeldElsewhereCache heldElsewhere) {
+        this.heldElsewhere = heldElsewhere;
+    }
+
+    /**
+     * Get the number of workers that may run concurrently
+     *
+     * @return the limit set by the concurrency controller, or the configured number of simultaneous processes if no
+     * controller is used
+     */
+    private int getConcurrencyLimit() {
+        if (concurrencyController == null) {
+            return simultaneousProcesses;
+        }
+        return Math.min(simultaneousProcesses, concurrencyController.getLimit());
+    }
+
+    /**
+     * Report the completion of a worker, and the backend calls it made, to the concurrency controller
+     *
+     * @param autonomousWorker the completed worker
+     */
+    private void recordCompletion(AutonomousWorker<T> autonomousWorker) {
+        if (concurrencyController == null) {
+            return;
+        }
+        if (autonomousWorker.getPreserveLatency() >= 0) {
+            concurrencyController.backendCallSucceeded(autonomousWorker.getPreserveLatency());
+        }
+        if (autonomousWorker.isBackendFailure()) {
+            concurrencyController.backendCallFailed();
+        }
+        concurrencyController.workerCompleted();
+        log.debug("Concurrency limit is now {} workers", getConcurrencyLimit());
+    }
+
+    /**
+     * Adjust the number of workers running concurrently at runtime, rather than always running the configured number
+     * of simultaneous processes. The configured number is still the upper bound.
+     *
+     * @param concurrencyController the controller, or null to always run the configured number of workers
+     */
+    public void setConcurrencyController(AimdConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Store the results journaled in the outbox, which could not be stored when the work was done. Each item is
+     * locked while its result is stored, and the result is discarded if the item is no longer triggered, as another
+     * instance of the component might have worked on the item, if the lock of the item was lost, or the worker was
+     * stopped, before the result was stored.
+     */
+    private void replayOutbox() {
+        if (outbox != null) {
+            int stored = outbox.replay(eventStorer, new EventOutbox.ReplayGuard<T>() {
+                @Override
+                public NamedLock lock(T item) throws LockingException {
+                    NamedLock batchlock = lockProvider.getLock(getBatchLockPath(runnable, item));
+                    if (acquireQuietly(batchlock, 0)) {
+                        return batchlock;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean isStillWanted(T item) throws CommunicationException {
+                    return getStillTriggeredItem(item) != null;
+                }
+            });
+            if (stored > 0) {
+                log.info("Stored {} results from the outbox", stored);
             }
         }
-        checkStopped(pool);
     }
 
     /**
-     * Check if the stopped flag is set. If set, and pool is non-null, shut down the pool
+     * Journal the results of the workers in an outbox on local disk before storing them. Results that could not be
+     * stored are stored at the start of the next call, and their items are not worked on again in the meantime.
      *
-     * @param pool the pool of worker threads
+     * @param outbox the outbox, or null to not journal the results
+     */
+    public void setOutbox(EventOutbox<T> outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Checkpoint the work on each item in a directory on local disk, so work that was interrupted is resumed from the
+     * last completed subtree when the item is worked on again by this component on this machine.
      *
-     * @throws CommunicationException if the stopped flag is set
+     * @param checkpointDirectory the checkpoint directory, or null to not checkpoint the work
      */
-    private void checkStopped(ExecutorService pool) throws CommunicationException {
-        if (stopped) {
-            if (pool != null) {
-                pool.shutdownNow();
+    public void setCheckpointDirectory(File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * Set the listener to receive a summary of the result of each item, as soon as the work on the item is completed
+     *
+     * @param resultListener the listener, or null for no listener
+     */
+    public void setResultListener(ResultListener<T> resultListener) {
+        this.resultListener = resultListener;
+    }
+
+    private void notifyResultListener(T item, ResultSummary summary) {
+        if (resultListener != null) {
+            try {
+                resultListener.resultWritten(item, summary);
+            } catch (RuntimeException e) {
+                log.warn("Result listener failed for item {}", item.getFullID(), e);
             }
-            throw new CommunicationException("Lost connection to lock server");
         }
     }
 
+    /**
+     * Get the metrics of the scheduling of work in this component
+     *
+     * @return the metrics
+     */
+    public SchedulingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set how long to wait for a lost connection to the lock server to be restored, before stopping the workers.
+     * While waiting, the workers hold their results, and write them when the connection is restored.
+     *
+     * @param reconnectTimeout the timeout in milliseconds. Default one minute
+     */
+    public void setReconnectTimeout(long reconnectTimeout) {
+        this.reconnectTimeout = reconnectTimeout;
+    }
+
+    /**
+     * Run the workers on virtual threads, if the JVM supports them, with the number of simultaneous processes
+     * limited by a semaphore rather than by the size of a thread pool
+     *
+     * @param virtualThreads true to use virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Order the triggered items by estimated cost, so the most expensive items are worked on first. The triggered
+     * items are read ahead in a window, and ordered within the window.
+     *
+     * @param costEstimator the estimator of the cost of the items, or null to work on the items in the order they
+     *                      are triggered
+     * @param lookahead     the number of items to read ahead and order
+     */
+    public void setCostOrdering(ItemCostEstimator<T> costEstimator, int lookahead) {
+        this.costEstimator = costEstimator;
+        this.costLookahead = lookahead;
+    }
+
+    /**
+     * Stop the work in progress, when the process is shutting down before the work is done. No more items are
+     * claimed or started, and the running workers are stopped and their work cancelled, and their threads
+     * interrupted. The results of the cancelled work are discarded, so the items are worked on again later. Workers
+     * that complete their work anyway keep their results in the outbox, if any, rather than preserve them. The
+     * component should not be called again.
+     */
+    public void stopWorkers() {
+        workersStopped = true;
+        concurrencyConnectionStateListener.cancelWorkers();
+        cancelRequested = true;
+        signalStateChanged();
+    }
+
     /**
      * Mark the connection to the lock server as suspended or not
      *
@@ -344,18 +994,58 @@ public class AutonomousComponent<T extends Item> implements Callable<CallResult<
      */
     public void setPaused(boolean paused) {
         this.paused = paused;
+        signalStateChanged();
     }
 
     /**
-     * Mark the connection to the lock server as lost
+     * Mark the connection to the lock server as lost. Once lost, the locks of the items might be invalid, even if the
+     * connection is restored, so the items must be checked, and locked again if the session with the lock server have
+     * expired, before the workers are resumed.
      *
      * @param stopped if true, the connection is lost
      *
-     * @see #checkLockServerConnectionState()
-     * @see #checkStopped(java.util.concurrent.ExecutorService)
+     * @see #checkLockServerConnectionState(Map, Map, ExecutorService)
      */
     public void setStopped(boolean stopped) {
+        if (stopped) {
+            locksLost = true;
+        }
         this.stopped = stopped;
+        signalStateChanged();
+    }
+
+    /**
+     * Check if the connection to the lock server have been lost, and the items not yet locked again
+     *
+     * @return true if the locks of the items might be invalid
+     */
+    public boolean isLocksLost() {
+        return locksLost;
+    }
+
+    /**
+     * The task executing a worker. When the worker have terminated, even if the task was cancelled, the worker is
+     * added to the queue of completed workers, and the thread waiting for workers to complete is woken up.
+     */
+    private class WorkerTask extends FutureTask<Void> {
+        private final AutonomousWorker<T> autonomousWorker;
+        private final Queue<AutonomousWorker<T>> completed;
+
+        private WorkerTask(AutonomousWorker<T> autonomousWorker, Queue<AutonomousWorker<T>> completed) {
+            super(autonomousWorker, null);
+            this.autonomousWorker = autonomousWorker;
+            this.completed = completed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                completed.add(autonomousWorker);
+                signalStateChanged();
+            }
+        }
     }
 }
 
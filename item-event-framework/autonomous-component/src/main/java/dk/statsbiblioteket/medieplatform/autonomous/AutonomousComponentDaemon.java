@@ -0,0 +1,100 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an autonomous component as a resident process. Rather than starting a new JVM for every poll, the daemon
+ * keeps the autonomous component, and thus the lock client, the event trigger, the event storer and the runnable
+ * component, alive between polls. It invokes {@link AutonomousComponent#call()} repeatedly, sleeping the poll
+ * interval between each invocation, until it is stopped.
+ */
+public class AutonomousComponentDaemon<T extends Item> implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(AutonomousComponentDaemon.class);
+
+    private final AutonomousComponent<T> autonomousComponent;
+    private final long pollInterval;
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * Create a new daemon
+     *
+     * @param autonomousComponent the autonomous component to invoke on each poll
+     * @param pollInterval        the number of milliseconds to wait between polls
+     */
+    public AutonomousComponentDaemon(AutonomousComponent<T> autonomousComponent, long pollInterval) {
+        this.autonomousComponent = autonomousComponent;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Poll for work until stopped. Failures in a single poll are logged, and do not stop the daemon.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!isStopped()) {
+                CallResult<T> result = AutonomousComponentUtils.call(autonomousComponent);
+                if (result.fatalErrorEncountered()) {
+                    log.warn("Poll failed: {}", result.getErrorMessage());
+                } else {
+                    log.info("Poll completed. {}", result);
+                }
+                try {
+                    if (stopSignal.await(pollInterval, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    log.info("Interrupted while waiting for next poll, so stopping");
+                    break;
+                }
+            }
+        } finally {
+            terminated.countDown();
+        }
+        log.info("Daemon stopped");
+    }
+
+    /**
+     * Signal the daemon to stop. The daemon will stop when the current poll, if any, have completed.
+     */
+    public void stop() {
+        stopSignal.countDown();
+    }
+
+    /**
+     * Stop the workers of the current poll, if any, and cancel their work. Used when the daemon must stop before the
+     * current poll have completed.
+     *
+     * @see AutonomousComponent#stopWorkers()
+     */
+    public void stopWorkers() {
+        autonomousComponent.stopWorkers();
+    }
+
+    /**
+     * Check if the daemon have been signalled to stop
+     *
+     * @return true if stopped
+     */
+    public boolean isStopped() {
+        return stopSignal.getCount() == 0;
+    }
+
+    /**
+     * Wait for the daemon to stop
+     *
+     * @param timeout the max number of milliseconds to wait
+     *
+     * @return true if the daemon stopped, false if the timeout was exceeded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return terminated.await(timeout, TimeUnit.MILLISECONDS);
+    }
+}
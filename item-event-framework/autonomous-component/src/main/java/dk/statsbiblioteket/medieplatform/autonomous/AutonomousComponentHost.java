@@ -0,0 +1,105 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several autonomous components in one process. Each component is run as a daemon on its own thread, but the
+ * components can share the lock provider, the event trigger and the event storer, and thus one lock server session
+ * and one set of connection pools, rather than one per component.
+ */
+public class AutonomousComponentHost<T extends Item> implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(AutonomousComponentHost.class);
+
+    private final List<AutonomousComponentDaemon<T>> daemons = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * Add a component to the host. Components must be added before the host is run.
+     *
+     * @param name   the name of the component, used for the name of the thread running the component
+     * @param daemon the daemon running the component
+     */
+    public synchronized void addComponent(String name, AutonomousComponentDaemon<T> daemon) {
+        daemons.add(daemon);
+        names.add(name);
+    }
+
+    /**
+     * Run the components until all have been stopped
+     */
+    @Override
+    public void run() {
+        List<Thread> threads = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < daemons.size(); i++) {
+                Thread thread = new Thread(daemons.get(i), "autonomous-host-" + names.get(i));
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        log.info("Started {} components", threads.size());
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                log.info("Interrupted while waiting for the components, so stopping them");
+                stop();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        log.info("All components stopped");
+    }
+
+    /**
+     * Signal all components to stop. Each component will stop when its current poll, if any, have completed.
+     */
+    public synchronized void stop() {
+        for (AutonomousComponentDaemon<T> daemon : daemons) {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Stop the workers of the current poll of all components, and cancel their work. Used when the host must stop
+     * before the current polls have completed.
+     *
+     * @see AutonomousComponent#stopWorkers()
+     */
+    public synchronized void stopWorkers() {
+        for (AutonomousComponentDaemon<T> daemon : daemons) {
+            daemon.stopWorkers();
+        }
+    }
+
+    /**
+     * Wait for all components to stop
+     *
+     * @param timeout the max number of milliseconds to wait
+     *
+     * @return true if all components stopped, false if the timeout was exceeded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<AutonomousComponentDaemon<T>> current;
+        synchronized (this) {
+            current = new ArrayList<>(daemons);
+        }
+        for (AutonomousComponentDaemon<T> daemon : current) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (timeout == Long.MAX_VALUE) {
+                remaining = Long.MAX_VALUE;
+            }
+            if (!daemon.awaitTermination(remaining)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -6,10 +6,12 @@ import com.netflix.curator.retry.ExponentialBackoffRetry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class AutonomousComponentUtils {
@@ -27,6 +29,7 @@ public class AutonomousComponentUtils {
      * will be printed to the log and the result map will be empty
      *
      * autonomous.lockserver.url: string: url to the zookeeper server
+     * autonomous.lockProvider: string: "zookeeper" (default) or "inprocess" for locks only shared within the JVM
      * autonomous.sboi.url: string, url to the summa webservice
      * doms.url: string, url to the fedora doms instance
      * doms.username: string; username when writing events to the doms batch objects
@@ -46,76 +49,446 @@ public class AutonomousComponentUtils {
      * autonomous.oldEvents: String list, comma separated: The list of event IDs that the batch must have
      * experienced AFTER last update to the object or not at all
      * autonomous.itemTypes: String list, comma separated: The list of event types (content models) to consider.
+     * autonomous.costLookahead: Integer: The number of triggered items to read ahead and order by estimated cost, if
+     * the component is an ItemCostEstimator. Default 0, ie. the items are worked on in the order they are triggered
+     * autonomous.adaptiveConcurrency: Boolean: If true, the number of concurrent workers is adjusted at runtime,
+     * between autonomous.minThreads and autonomous.maxThreads. Default false
+     * autonomous.minThreads: Integer: The lowest number of concurrent workers, if adjusted at runtime. Default 1
+     * autonomous.virtualThreads: Boolean: If true, workers are run on virtual threads, if supported by the JVM.
+     * Default false
+     * autonomous.reconnectTimeout: Long: The number of milliseconds to wait for a lost lock server connection to be
+     * restored, before the workers are stopped. Default one minute
+     * autonomous.outboxDirectory: String: Directory where results are journaled until they are stored. Default unset
+     * autonomous.checkpointDirectory: String: Directory where the completed parts of the work are checkpointed. Default unset
+     * autonomous.metricsPort: Integer: Port to serve scheduling metrics on, in the Prometheus text format at /metrics.
+     * The metrics are always available over JMX. Default unset
+     * autonomous.sharding: Boolean: If true, the triggered items are sharded across the live instances of the
+     * component, and each instance tries its own items first. Needs the zookeeper lock provider. Default false
+     * autonomous.heldElsewhereMaxAge: Long: Max number of milliseconds to leave out items found locked by other
+     * instances, until their locks are released, for instance 600000. Needs the zookeeper lock provider. Default 0, to
+     * try all items on every poll
+     * autonomous.shutdownGracePeriod: Long: When run as a daemon, the number of milliseconds to wait for the current
+     * poll to complete when the JVM is shut down, before the workers are stopped and their work cancelled, and then
+     * again for the stopped workers to terminate. Default the poll interval
      */
-
     public static <T extends Item> CallResult<T> startAutonomousComponent(Properties properties, RunnableComponent<T> component,
                                                                           EventTrigger<T> eventTrigger,
                                                                           EventStorer<T> eventStorer) {
-        //Make a client for the lock framework, and start it
+        return startAutonomousComponent(properties, component, eventTrigger, eventStorer, null);
+    }
+
+    /**
+     * Create an autonomous component from a runnable component and start it. The properties are as described in
+     * {@link #startAutonomousComponent(java.util.Properties, RunnableComponent, EventTrigger, EventStorer)}, with the
+     * addition of
+     *
+     * autonomous.distributedWorkQueue: Boolean: If true, the instances of the component share a work queue in the
+     * lock server. Default false
+     *
+     * @param properties   the properties to use
+     * @param component    the runnable component to invoke
+     * @param eventTrigger the event trigger to find work with
+     * @param eventStorer  the event storer to record the results in
+     * @param itemFactory  the item factory, used to recreate items taken from the distributed work queue. Can be null
+     *                     if the queue is not used
+     *
+     * @return the result of the invocation
+     */
+    public static <T extends Item> CallResult<T> startAutonomousComponent(Properties properties, RunnableComponent<T> component,
+                                                                          EventTrigger<T> eventTrigger,
+                                                                          EventStorer<T> eventStorer,
+                                                                          ItemFactory<T> itemFactory) {
+        //Make a provider for the locks, and start it
+        LockProvider lockProvider = createLockProvider(properties);
+        try {
+            AutonomousComponent<T> autonoumous = createAutonomousComponent(properties,
+                                                                           component,
+                                                                           lockProvider,
+                                                                           eventTrigger,
+                                                                           eventStorer,
+                                                                           itemFactory);
+            try {
+                //Start the component
+                //This call will return when the work is done
+                return call(autonoumous);
+            } finally {
+                MetricsEndpoint.stopServing(autonoumous.getMetrics());
+            }
+        } finally {
+            closeQuietly(lockProvider);
+        }
+
+    }
+
+    /**
+     * Create an autonomous component from a runnable component and run it as a daemon. The lock client, the event
+     * trigger, the event storer and the component are kept alive between polls, and the component polls for work
+     * every autonomous.pollInterval milliseconds (default one minute). This method blocks until the JVM is shut down.
+     * The properties are as described in
+     * {@link #startAutonomousComponent(java.util.Properties, RunnableComponent, EventTrigger, EventStorer)}
+     *
+     * @param properties   the properties to use
+     * @param component    the runnable component to invoke
+     * @param eventTrigger the event trigger to poll for work
+     * @param eventStorer  the event storer to record the results in
+     */
+    public static <T extends Item> void startAutonomousComponentDaemon(Properties properties,
+                                                                       final RunnableComponent<T> component,
+                                                                       EventTrigger<T> eventTrigger,
+                                                                       EventStorer<T> eventStorer) {
+        startAutonomousComponentDaemon(properties, component, eventTrigger, eventStorer, null);
+    }
+
+    /**
+     * Create an autonomous component from a runnable component and run it as a daemon. The properties are as
+     * described in
+     * {@link #startAutonomousComponent(java.util.Properties, RunnableComponent, EventTrigger, EventStorer, ItemFactory)}
+     *
+     * @param properties   the properties to use
+     * @param component    the runnable component to invoke
+     * @param eventTrigger the event trigger to poll for work
+     * @param eventStorer  the event storer to record the results in
+     * @param itemFactory  the item factory, used to recreate items taken from the distributed work queue. Can be null
+     *                     if the queue is not used
+     */
+    public static <T extends Item> void startAutonomousComponentDaemon(Properties properties,
+                                                                       final RunnableComponent<T> component,
+                                                                       EventTrigger<T> eventTrigger,
+                                                                       EventStorer<T> eventStorer,
+                                                                       ItemFactory<T> itemFactory) {
+        final LockProvider lockProvider = createLockProvider(properties);
+        try {
+            AutonomousComponent<T> autonoumous = createAutonomousComponent(properties,
+                                                                           component,
+                                                                           lockProvider,
+                                                                           eventTrigger,
+                                                                           eventStorer,
+                                                                           itemFactory);
+            long pollInterval = Long.parseLong(properties.getProperty(ConfigConstants.AUTONOMOUS_POLL_INTERVAL,
+                                                                      60 * 1000l + ""));
+            final long shutdownGracePeriod = Long.parseLong(properties.getProperty(
+                    ConfigConstants.AUTONOMOUS_SHUTDOWN_GRACE_PERIOD, pollInterval + ""));
+            final AutonomousComponentDaemon<T> daemon = new AutonomousComponentDaemon<>(autonoumous, pollInterval);
+            Runtime.getRuntime().addShutdownHook(new Thread("autonomous-daemon-shutdown") {
+                @Override
+                public void run() {
+                    log.info("Shutting down daemon for {}", component.getComponentName());
+                    daemon.stop();
+                    try {
+                        if (!daemon.awaitTermination(shutdownGracePeriod)) {
+                            log.warn("The current poll did not complete within {} ms, so stopping the workers",
+                                     shutdownGracePeriod);
+                            daemon.stopWorkers();
+                            if (!daemon.awaitTermination(shutdownGracePeriod)) {
+                                log.warn("The stopped workers did not terminate within {} ms, so their work is lost",
+                                         shutdownGracePeriod);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        //Nothing to do, the JVM is going away anyway
+                    }
+                }
+            });
+            log.info("Starting daemon for {}, polling every {} ms", component.getComponentName(), pollInterval);
+            daemon.run();
+        } finally {
+            closeQuietly(lockProvider);
+        }
+    }
+
+    /**
+     * Run several components in one process, each as a daemon as described in
+     * {@link #startAutonomousComponentDaemon(java.util.Properties, RunnableComponent, EventTrigger, EventStorer, ItemFactory)}.
+     * The components share one lock provider, made from the host properties, and the given event trigger and event
+     * storer. This method blocks until the JVM is shut down.
+     *
+     * @param hostProperties the properties of the host, specifying the lock provider
+     * @param components     the runnable components to invoke, and the properties of each component
+     * @param eventTrigger   the event trigger shared by the components
+     * @param eventStorer    the event storer shared by the components
+     * @param itemFactory    the item factory, used to recreate items taken from the distributed work queue or the
+     *                       outbox. Can be null if neither is used
+     */
+    public static <T extends Item> void startAutonomousComponentHost(Properties hostProperties,
+                                                                     Map<RunnableComponent<T>, Properties> components,
+                                                                     EventTrigger<T> eventTrigger,
+                                                                     EventStorer<T> eventStorer,
+                                                                     ItemFactory<T> itemFactory) {
+        final LockProvider lockProvider = createLockProvider(hostProperties);
+        try {
+            final AutonomousComponentHost<T> host = new AutonomousComponentHost<>();
+            for (Map.Entry<RunnableComponent<T>, Properties> entry : components.entrySet()) {
+                Properties properties = entry.getValue();
+                AutonomousComponent<T> autonoumous = createAutonomousComponent(properties,
+                                                                               entry.getKey(),
+                                                                               lockProvider,
+                                                                               eventTrigger,
+                                                                               eventStorer,
+                                                                               itemFactory);
+                long pollInterval = Long.parseLong(properties.getProperty(ConfigConstants.AUTONOMOUS_POLL_INTERVAL,
+                                                                          60 * 1000l + ""));
+                host.addComponent(entry.getKey().getComponentName(),
+                                  new AutonomousComponentDaemon<>(autonoumous, pollInterval));
+            }
+            final long shutdownGracePeriod = Long.parseLong(hostProperties.getProperty(
+                    ConfigConstants.AUTONOMOUS_SHUTDOWN_GRACE_PERIOD, 60 * 1000l + ""));
+            Runtime.getRuntime().addShutdownHook(new Thread("autonomous-host-shutdown") {
+                @Override
+                public void run() {
+                    log.info("Shutting down host");
+                    host.stop();
+                    try {
+                        if (!host.awaitTermination(shutdownGracePeriod)) {
+                            log.warn("The current polls did not complete within {} ms, so stopping the workers",
+                                     shutdownGracePeriod);
+                            host.stopWorkers();
+                            if (!host.awaitTermination(shutdownGracePeriod)) {
+                                log.warn("The stopped workers did not terminate within {} ms, so their work is lost",
+                                         shutdownGracePeriod);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        //Nothing to do, the JVM is going away anyway
+                    }
+                }
+            });
+            log.info("Starting host for {} components", components.size());
+            host.run();
+        } finally {
+            closeQuietly(lockProvider);
+        }
+    }
+
+    /**
+     * Make a provider for the locks, and start it. If autonomous.lockProvider is "inprocess", the locks are only
+     * shared within this JVM, and no lock server is used. Otherwise the locks are kept in the lock server at
+     * autonomous.lockserver.url
+     *
+     * @param properties the properties, specifying autonomous.lockProvider and autonomous.lockserver.url
+     *
+     * @return a started lock provider
+     */
+    protected static LockProvider createLockProvider(Properties properties) {
+        String lockProvider = properties.getProperty(ConfigConstants.AUTONOMOUS_LOCK_PROVIDER, "zookeeper");
+        if (lockProvider.equalsIgnoreCase("inprocess")) {
+            return new InProcessLockProvider();
+        }
+        return new CuratorLockProvider(createLockClient(properties));
+    }
+
+    private static void closeQuietly(LockProvider lockProvider) {
+        try {
+            lockProvider.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the lock provider", e);
+        }
+    }
+
+    /**
+     * Make a client for the lock framework, and start it
+     *
+     * @param properties the properties, specifying autonomous.lockserver.url
+     *
+     * @return a started lock client
+     */
+    protected static CuratorFramework createLockClient(Properties properties) {
         CuratorFramework lockClient
                 = CuratorFrameworkFactory.newClient(properties.getProperty(ConfigConstants.AUTONOMOUS_LOCKSERVER_URL),
                 new ExponentialBackoffRetry(1000, 3));
         lockClient.start();
-        try {
-            //This is the number of batches that will be worked on in parallel per invocation
-            int simultaneousProcesses = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_MAXTHREADS,
-                            "1"));
-            //This is the number of batches that will be worked on in total per invocation
-            int queueLength = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_QUEUELENGTH,
-                                                                                       "1"));
-
-            //This is the timeout when attempting to lock SBOI
-            long timeoutWaitingToLockSBOI = 5000l;
-            //This is the timeout when attempting to lock a batch before working on it
-            long timeoutWaitingToLockBatch = 2000l;
-            //After this time, the worker thread will be terminated, even if not complete
-            long maxRunTimeForWorker = Long.parseLong(properties.getProperty(ConfigConstants.AUTONOMOUS_MAX_RUNTIME,
-                            60 * 60 * 1000l + ""));
-            String maxResultsProperty = properties.getProperty(ConfigConstants.MAX_RESULTS_COLLECTED);
-            Integer maxResults = null;
-            if (maxResultsProperty != null) {
-                maxResults = Integer.parseInt(maxResultsProperty);
+        return lockClient;
+    }
+
+    /**
+     * Create an autonomous component from a runnable component. Stuff is configured from the included properties
+     *
+     * @param properties   the properties to use
+     * @param component    the runnable component to invoke
+     * @param lockClient   the started lock client
+     * @param eventTrigger the event trigger
+     * @param eventStorer  the event storer
+     *
+     * @return the autonomous component, ready to be called
+     */
+    protected static <T extends Item> AutonomousComponent<T> createAutonomousComponent(Properties properties,
+                                                                                       RunnableComponent<T> component,
+                                                                                       CuratorFramework lockClient,
+                                                                                       EventTrigger<T> eventTrigger,
+                                                                                       EventStorer<T> eventStorer) {
+        return createAutonomousComponent(properties,
+                                         component,
+                                         new CuratorLockProvider(lockClient),
+                                         eventTrigger,
+                                         eventStorer,
+                                         null);
+    }
+
+    /**
+     * Create an autonomous component from a runnable component. Stuff is configured from the included properties
+     *
+     * @param properties   the properties to use
+     * @param component    the runnable component to invoke
+     * @param lockProvider the started lock provider
+     * @param eventTrigger the event trigger
+     * @param eventStorer  the event storer
+     * @param itemFactory  the item factory, used to recreate items taken from the distributed work queue. Can be null
+     *                     if the queue is not used
+     *
+     * @return the autonomous component, ready to be called
+     */
+    protected static <T extends Item> AutonomousComponent<T> createAutonomousComponent(Properties properties,
+                                                                                       RunnableComponent<T> component,
+                                                                                       LockProvider lockProvider,
+                                                                                       EventTrigger<T> eventTrigger,
+                                                                                       EventStorer<T> eventStorer,
+                                                                                       ItemFactory<T> itemFactory) {
+        //This is the number of batches that will be worked on in parallel per invocation
+        int simultaneousProcesses = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_MAXTHREADS,
+                        "1"));
+        //This is the number of batches that will be worked on in total per invocation
+        int queueLength = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_QUEUELENGTH,
+                                                                                   "1"));
+
+        //This is the timeout when attempting to lock SBOI
+        long timeoutWaitingToLockSBOI = 5000l;
+        //This is the timeout when attempting to lock a batch before working on it. Batches locked by others are skipped
+        long timeoutWaitingToLockBatch = Long.parseLong(properties.getProperty(ConfigConstants.AUTONOMOUS_ITEM_LOCK_TIMEOUT,
+                        "0"));
+        //After this time, the worker thread will be terminated, even if not complete
+        long maxRunTimeForWorker = Long.parseLong(properties.getProperty(ConfigConstants.AUTONOMOUS_MAX_RUNTIME,
+                        60 * 60 * 1000l + ""));
+        String maxResultsProperty = properties.getProperty(ConfigConstants.MAX_RESULTS_COLLECTED);
+        Integer maxResults = null;
+        if (maxResultsProperty != null) {
+            maxResults = Integer.parseInt(maxResultsProperty);
+        }
+        if (eventTrigger == null) {
+            throw new IllegalArgumentException("eventTrigger null");
+        }
+        if (eventStorer == null) {
+            throw new IllegalArgumentException("eventStorer null");
+        }
+        //Use all the above to make the autonomous component
+        AutonomousComponent<T> autonomousComponent = new AutonomousComponent<>(component,
+                lockProvider,
+                simultaneousProcesses,
+                queueLength,
+                toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_PAST_SUCCESSFUL_EVENTS)),
+                                                                              toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_FUTURE_EVENTS)),
+                                                                              toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_OLD_EVENTS)),
+                                                                              toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_ITEM_TYPES)),
+                timeoutWaitingToLockSBOI,
+                timeoutWaitingToLockBatch,
+                maxRunTimeForWorker,
+                maxResults,
+                eventTrigger,
+                eventStorer);
+        if (Boolean.parseBoolean(properties.getProperty(ConfigConstants.AUTONOMOUS_DISTRIBUTED_WORK_QUEUE, "false"))) {
+            if (itemFactory == null) {
+                throw new IllegalArgumentException("itemFactory null, but needed for the distributed work queue");
+            }
+            if (!(lockProvider instanceof CuratorLockProvider)) {
+                throw new IllegalArgumentException("The distributed work queue needs a zookeeper lock provider");
             }
-            if (eventTrigger == null) {
-                throw new IllegalArgumentException("eventTrigger null");
+            CuratorFramework lockClient = ((CuratorLockProvider) lockProvider).getLockClient();
+            DistributedWorkQueue<T> workQueue = new DistributedWorkQueue<>(lockClient,
+                                                                            component.getComponentName(),
+                                                                            itemFactory);
+            try {
+                workQueue.start();
+            } catch (LockingException e) {
+                log.error("Unable to initialize work queue", e);
+                throw new InitialisationException("Unable to initialize work queue", e);
             }
-            if (eventStorer == null) {
-                throw new IllegalArgumentException("eventStorer null");
+            autonomousComponent.setWorkQueue(workQueue);
+        }
+        if (Boolean.parseBoolean(properties.getProperty(ConfigConstants.AUTONOMOUS_SHARDING, "false"))) {
+            if (!(lockProvider instanceof CuratorLockProvider)) {
+                throw new IllegalArgumentException("Sharding needs a zookeeper lock provider");
             }
-            //Use all the above to make the autonomous component
-            AutonomousComponent<T> autonoumous = new AutonomousComponent<>(component,
-                    lockClient,
-                    simultaneousProcesses,
-                    queueLength,
-                    toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_PAST_SUCCESSFUL_EVENTS)),
-                                                                                  toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_FUTURE_EVENTS)),
-                                                                                  toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_OLD_EVENTS)),
-                                                                                  toEvents(properties.getProperty(ConfigConstants.AUTONOMOUS_ITEM_TYPES)),
-                    timeoutWaitingToLockSBOI,
-                    timeoutWaitingToLockBatch,
-                    maxRunTimeForWorker,
-                    maxResults,
-                    eventTrigger,
-                    eventStorer);
-            try {//Start the component
-                //This call will return when the work is done
-                return autonoumous.call();
-            } catch (CouldNotGetLockException e) {
-                log.debug(e.getMessage());
-                return new CallResult<>(e.getMessage());
+            ItemSharding sharding = new ItemSharding(((CuratorLockProvider) lockProvider).getLockClient(),
+                                                     component.getComponentName(),
+                                                     ItemSharding.newInstanceId());
+            try {
+                sharding.start();
             } catch (LockingException e) {
-                final String msg = "Failed to communicate with zookeeper";
-                log.error(msg, e);
-                return new CallResult<>(msg);
-            } catch (CommunicationException e) {
-                final String msg = "Commmunication exception when invoking backend services";
-                log.error(msg, e);
-                return new CallResult<>(msg);
+                log.error("Unable to initialize sharding", e);
+                throw new InitialisationException("Unable to initialize sharding", e);
             }
-        } finally {
-            lockClient.close();
+            autonomousComponent.setSharding(sharding);
+        }
+        long heldElsewhereMaxAge = Long.parseLong(properties.getProperty(
+                ConfigConstants.AUTONOMOUS_HELD_ELSEWHERE_MAX_AGE, "0"));
+        if (heldElsewhereMaxAge > 0 && lockProvider instanceof CuratorLockProvider) {
+            autonomousComponent.setHeldElsewhereCache(new HeldElsewhereCache(
+                    ((CuratorLockProvider) lockProvider).getLockClient(), heldElsewhereMaxAge));
+        }
+        String outboxDirectory = properties.getProperty(ConfigConstants.AUTONOMOUS_OUTBOX_DIR);
+        if (outboxDirectory != null) {
+            if (itemFactory == null) {
+                throw new IllegalArgumentException("itemFactory null, but needed for the outbox");
+            }
+            autonomousComponent.setOutbox(new EventOutbox<>(new File(outboxDirectory, component.getComponentName()),
+                                                            itemFactory));
+        }
+        String checkpointDirectory = properties.getProperty(ConfigConstants.AUTONOMOUS_CHECKPOINT_DIR);
+        if (checkpointDirectory != null) {
+            autonomousComponent.setCheckpointDirectory(new File(checkpointDirectory, component.getComponentName()));
+        }
+        autonomousComponent.setReconnectTimeout(Long.parseLong(properties.getProperty(
+                ConfigConstants.AUTONOMOUS_RECONNECT_TIMEOUT, 60 * 1000l + "")));
+        autonomousComponent.setVirtualThreads(Boolean.parseBoolean(properties.getProperty(
+                ConfigConstants.AUTONOMOUS_VIRTUAL_THREADS, "false")));
+        if (Boolean.parseBoolean(properties.getProperty(ConfigConstants.AUTONOMOUS_ADAPTIVE_CONCURRENCY, "false"))) {
+            int minimumProcesses = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_MINTHREADS, "1"));
+            autonomousComponent.setConcurrencyController(new AimdConcurrencyController(minimumProcesses,
+                                                                                       simultaneousProcesses));
         }
+        int costLookahead = Integer.parseInt(properties.getProperty(ConfigConstants.AUTONOMOUS_COST_LOOKAHEAD, "0"));
+        if (costLookahead > 0) {
+            if (component instanceof ItemCostEstimator) {
+                @SuppressWarnings("unchecked")
+                ItemCostEstimator<T> costEstimator = (ItemCostEstimator<T>) component;
+                autonomousComponent.setCostOrdering(costEstimator, costLookahead);
+            } else {
+                log.warn("{} is set, but {} cannot estimate the cost of items, so items are not ordered by cost",
+                         ConfigConstants.AUTONOMOUS_COST_LOOKAHEAD, component.getComponentName());
+            }
+        }
+        MetricsEndpoint.registerMBean(autonomousComponent.getMetrics());
+        String metricsPort = properties.getProperty(ConfigConstants.AUTONOMOUS_METRICS_PORT);
+        if (metricsPort != null) {
+            try {
+                MetricsEndpoint.getEndpoint(Integer.parseInt(metricsPort)).add(autonomousComponent.getMetrics());
+            } catch (IOException e) {
+                log.warn("Failed to serve metrics on port {}", metricsPort, e);
+            }
+        }
+        return autonomousComponent;
+    }
 
+    /**
+     * Invoke the autonomous component once, and convert any failure to a call result with an error message
+     *
+     * @param autonoumous the autonomous component
+     *
+     * @return the result of the invocation
+     */
+    static <T extends Item> CallResult<T> call(AutonomousComponent<T> autonoumous) {
+        try {
+            return autonoumous.call();
+        } catch (CouldNotGetLockException e) {
+            log.debug(e.getMessage());
+            return new CallResult<>(e.getMessage());
+        } catch (LockingException e) {
+            final String msg = "Failed to communicate with zookeeper";
+            log.error(msg, e);
+            return new CallResult<>(msg);
+        } catch (CommunicationException e) {
+            final String msg = "Commmunication exception when invoking backend services";
+            log.error(msg, e);
+            return new CallResult<>(msg);
+        }
     }
 
     /**
@@ -5,12 +5,24 @@ import org.slf4j.Logger;
 import dk.statsbiblioteket.util.Strings;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The purpose of this class is the decorate a runnable component with additional behaivour.
  * Unless the component specifically requests it (by settting presevable=false on the result collector) the
  * result will be written back to DOMS
+ * <p>
+ * The worker is running, suspended or stopped. While the connection to the lock server is suspended or lost, the
+ * worker is suspended. The work on the item continues, but the result is held until the worker is running again, and
+ * then written. If the worker is stopped, the result is not written, as the item can no longer be considered locked.
+ * If the work of a stopped worker was cancelled, the result is discarded, as the work was not completed.
  */
 public class AutonomousWorker<T extends Item> implements Runnable {
 
@@ -21,15 +33,39 @@ public class AutonomousWorker<T extends Item> implements Runnable {
     private ResultCollector resultCollector;
     private T item;
     private EventStorer<T> eventStorer;
-    private boolean pause = false;
-    private boolean stop = false;
+    private final Lock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+    private State state = State.RUNNING;
+    private final long timeout;
+    private final CancellationToken cancellationToken = new CancellationToken();
+    private volatile boolean backendFailure = false;
+    private volatile long preserveLatency = -1;
+    private EventOutbox<T> outbox = null;
+    private Checkpoint checkpoint = null;
+    private SchedulingMetrics metrics = null;
+    private final long created = System.currentTimeMillis();
 
     public AutonomousWorker(RunnableComponent<T> component, ResultCollector resultCollector, T item,
                             EventStorer<T> eventStorer) {
+        this(component, resultCollector, item, eventStorer, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a worker with a deadline for the work on the item
+     *
+     * @param component       the component doing the work
+     * @param resultCollector the result collector
+     * @param item            the item to work on
+     * @param eventStorer     the event storer to preserve the result with
+     * @param timeout         the max number of milliseconds the work may take, measured from when the worker starts
+     */
+    public AutonomousWorker(RunnableComponent<T> component, ResultCollector resultCollector, T item,
+                            EventStorer<T> eventStorer, long timeout) {
         this.component = component;
         this.resultCollector = resultCollector;
         this.item = item;
         this.eventStorer = eventStorer;
+        this.timeout = timeout;
     }
 
     private String getComponentFormattedName() {
@@ -39,14 +75,33 @@ public class AutonomousWorker<T extends Item> implements Runnable {
     @Override
     public void run() {
 
+        boolean cancelled = false;
+        boolean resultKept = false;
+        ProgressCheckpoint progress = null;
         try {
             try {
                 try {
                     //do work
                     resultCollector.setTimestamp(new Date());
-                    component.doWorkOnItem(item, resultCollector);
+                    if (checkpoint != null) {
+                        checkpoint.restoreInto(resultCollector);
+                        progress = new ProgressCheckpoint(checkpoint);
+                        resultCollector.setCheckpoint(progress);
+                    }
+                    if (metrics != null) {
+                        metrics.workerQueueWait.observeSince(created);
+                    }
+                    cancellationToken.startDeadline(timeout);
+                    if (component instanceof CancellableRunnableComponent) {
+                        ((CancellableRunnableComponent<T>) component).doWorkOnItem(item, resultCollector,
+                                                                                   cancellationToken);
+                    } else {
+                        component.doWorkOnItem(item, resultCollector);
+                    }
                 } catch (Throwable e) {
                     log.warn("Component threw exception", e);
+                    backendFailure |= isCommunicationFailure(e);
+                    cancelled = cancellationToken.isCancelled() || isCancellation(e);
                     //the work failed
                     resultCollector.addFailure(item.getFullID(),
                                                       "exception",
@@ -56,10 +111,25 @@ public class AutonomousWorker<T extends Item> implements Runnable {
                 }
             } finally {
                 resultCollector.setDuration(new Date().getTime() - resultCollector.getTimestamp().getTime());
-                if (resultCollector.isPreservable()) {
+                if (metrics != null) {
+                    metrics.workerRun.observeSince(resultCollector.getTimestamp().getTime());
+                }
+                if (cancelled && getState() == State.STOPPED) {
+                    log.warn("The worker for item {} was stopped, and the work cancelled, so the result is discarded, "
+                             + "and the work is done again when the item is next worked on", item.getFullID());
+                } else if (cancelled && progress != null && progress.getCompleted() > 0) {
+                    log.warn("The work on item {} was cancelled, so the result is not preserved, and the work is "
+                             + "resumed from the checkpoint when the item is next worked on", item.getFullID());
+                } else if (resultCollector.isPreservable()) {
+                    if (cancelled && progress != null) {
+                        log.warn("The work on item {} was cancelled without completing any subtree, so the "
+                                 + "cancellation is preserved as a failure, rather than resuming the work",
+                                 item.getFullID());
+                    }
                     try {
-                        preserveResult(item, resultCollector);
+                        resultKept = preserveResult(item, resultCollector);
                     } catch (Throwable t) {
+                        backendFailure |= isCommunicationFailure(t);
                         resultCollector.addFailure(item.getFullID(),
                                                           "exception",
                                                           component.getClass().getSimpleName(),
@@ -69,9 +139,13 @@ public class AutonomousWorker<T extends Item> implements Runnable {
                 } else {
                     log.info("The result collector is not marked as preservable, so it is not preserved in DOMS, but embedded here instead: {}",
                                     resultCollector.toReport());
+                    resultKept = true;
                 }
             }
         } finally {
+            if (resultKept && checkpoint != null) {
+                checkpoint.clear();
+            }
             if (!resultCollector.isSuccess()) {
                 log.error("Failed for item {}. The report was {}", item.getFullID(), resultCollector.toReport());
             }
@@ -87,38 +161,275 @@ public class AutonomousWorker<T extends Item> implements Runnable {
      *
      * @param item  the item worked on
      * @param result the result of the work
+     *
+     * @return true if the result was preserved or kept in the outbox
      */
-    private void preserveResult(T item, ResultCollector result) throws CommunicationException, NotFoundException {
+    private boolean preserveResult(T item, ResultCollector result) throws CommunicationException, NotFoundException {
 
-        while (pause && !stop) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                //just keep sleeping
+        String report = result.toReport();
+        File journaled = journal(item, report, result);
+        if (!awaitRunning()) {
+            if (journaled != null) {
+                log.warn("The worker is stopped, so the result is kept in the outbox, to be preserved later");
+            } else {
+                log.warn("The worker is stopped, so the result will not be preserved. The result was '{}'", report);
             }
+            return journaled != null;
         }
-        if (stop) {
-            log.warn("The worker is stopped, so the result will not be preserved. The result was '{}'",
-                            result.toReport());
-            return;
+        long start = System.currentTimeMillis();
+        try {
+            eventStorer.appendEventToItem(item,
+                                              getComponentFormattedName(),
+                                              result.getTimestamp(),
+                                              report,
+                                              component.getEventID(),
+                                              result.isSuccess());
+        } catch (CommunicationException e) {
+            if (journaled == null) {
+                throw e;
+            }
+            backendFailure = true;
+            log.warn("Failed to preserve result for item {}, so the result is kept in the outbox, to be preserved "
+                     + "later", item.getFullID(), e);
+            return true;
+        }
+        preserveLatency = System.currentTimeMillis() - start;
+        if (metrics != null) {
+            metrics.preserve.observe(preserveLatency);
         }
-        eventStorer.appendEventToItem(item,
-                                          getComponentFormattedName(),
-                                          result.getTimestamp(),
-                                          result.toReport(),
-                                          component.getEventID(),
-                                          result.isSuccess());
+        if (journaled != null) {
+            outbox.remove(journaled);
+        }
+        return true;
+    }
+
+    /**
+     * Write the result to the outbox, if any, before attempting to preserve it
+     *
+     * @return the journal entry, or null if the result was not journaled
+     */
+    private File journal(T item, String report, ResultCollector result) {
+        if (outbox == null) {
+            return null;
+        }
+        try {
+            return outbox.add(item, getComponentFormattedName(), result.getTimestamp(), report,
+                              component.getEventID(), result.isSuccess());
+        } catch (IOException e) {
+            log.error("Failed to write the result for item {} to the outbox", item.getFullID(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Journal the result in an outbox before preserving it, so it can be preserved later if preserving it fails, or
+     * the worker is stopped
+     *
+     * @param outbox the outbox, or null to not journal the result
+     */
+    public void setOutbox(EventOutbox<T> outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Record the time waiting to start, working and preserving the result in the given metrics
+     *
+     * @param metrics the metrics, or null to not record metrics
+     */
+    public void setMetrics(SchedulingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Checkpoint the work on the item, so work interrupted by a timeout or a restart is resumed from the last completed
+     * subtree. When the work is cancelled after completing a new subtree, no result is preserved, so the item is still
+     * triggered and the work is resumed on the next poll. If the cancelled work completed no new subtree, resuming it
+     * would not get any further, so the cancellation is preserved as a failure. The checkpoint is cleared when a
+     * result, successful or not, have been preserved.
+     *
+     * @param checkpoint the checkpoint, or null to not checkpoint the work
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    private static boolean isCancellation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException || cause instanceof InterruptedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCommunicationFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CommunicationException) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public T getItem() {
         return item;
     }
 
+    /**
+     * Get the token used to cancel the work on the item. The deadline of the token is set when the worker starts.
+     *
+     * @return the cancellation token
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Check if the work failed because communication with a backend failed, either while working on the item or
+     * while preserving the result
+     *
+     * @return true if a CommunicationException was thrown
+     */
+    public boolean isBackendFailure() {
+        return backendFailure;
+    }
+
+    /**
+     * Get the number of milliseconds it took to preserve the result in the event storer
+     *
+     * @return the latency, or -1 if the result was not preserved
+     */
+    public long getPreserveLatency() {
+        return preserveLatency;
+    }
+
+    /**
+     * Wait while the worker is suspended
+     *
+     * @return true if the worker is running, false if it is stopped
+     */
+    private boolean awaitRunning() {
+        stateLock.lock();
+        try {
+            if (state == State.SUSPENDED) {
+                log.info("The worker for item {} is suspended, so holding the result until it is resumed",
+                         item.getFullID());
+                while (state == State.SUSPENDED) {
+                    stateChanged.awaitUninterruptibly();
+                }
+                if (state == State.RUNNING) {
+                    log.info("The worker for item {} is resumed, so preserving the held result", item.getFullID());
+                }
+            }
+            return state == State.RUNNING;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void setState(State from, State to) {
+        stateLock.lock();
+        try {
+            if (state == from) {
+                state = to;
+                stateChanged.signalAll();
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Get the state of the worker
+     *
+     * @return the state
+     */
+    public State getState() {
+        stateLock.lock();
+        try {
+            return state;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Suspend or resume the worker. A stopped worker cannot be resumed.
+     *
+     * @param pause true to suspend the worker, false to resume it
+     */
     public void setPause(boolean pause) {
-        this.pause = pause;
+        if (pause) {
+            setState(State.RUNNING, State.SUSPENDED);
+        } else {
+            setState(State.SUSPENDED, State.RUNNING);
+        }
     }
 
+    /**
+     * Stop the worker, so the result will not be preserved. A stopped worker stays stopped.
+     *
+     * @param stop true to stop the worker
+     */
     public void setStop(boolean stop) {
-        this.stop = stop;
+        if (stop) {
+            stateLock.lock();
+            try {
+                state = State.STOPPED;
+                stateChanged.signalAll();
+            } finally {
+                stateLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The life cycle states of a worker
+     */
+    public enum State {
+        /** Working, and preserving the result when done */
+        RUNNING,
+        /** Working, but holding the result until resumed */
+        SUSPENDED,
+        /** Working, but not preserving the result */
+        STOPPED
+    }
+
+    /**
+     * Checkpoint counting the subtrees completed by the current attempt at the work, so it is known whether the
+     * attempt made any progress
+     */
+    private static class ProgressCheckpoint implements Checkpoint {
+        private final Checkpoint delegate;
+        private final AtomicInteger completed = new AtomicInteger();
+
+        private ProgressCheckpoint(Checkpoint delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isCompleted(String subtree) {
+            return delegate.isCompleted(subtree);
+        }
+
+        @Override
+        public void markCompleted(String subtree, ResultCollector failures) {
+            delegate.markCompleted(subtree, failures);
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void restoreInto(ResultCollector resultCollector) {
+            delegate.restoreInto(resultCollector);
+        }
+
+        @Override
+        public void clear() {
+            delegate.clear();
+        }
+
+        private int getCompleted() {
+            return completed.get();
+        }
     }
 }
@@ -1,11 +1,13 @@
 package dk.statsbiblioteket.medieplatform.autonomous;
 
-import java.util.HashMap;
-import java.util.Map;
-
-/** Container for the result information for a result of invoking the call method on a autonomous components. */
+/**
+ * Container for the result information for a result of invoking the call method on a autonomous components. Only the
+ * numbers of items worked on successfully and not are kept, as the full results are written as events on the items. To
+ * follow the result of each item, register a {@link ResultListener} on the component.
+ */
 public class CallResult<T extends Item> {
-    private final Map<T, ResultCollector> results = new HashMap<>();
+    private int successCount = 0;
+    private int failureCount = 0;
     private final String errorMessage;
 
     /**
@@ -23,7 +25,25 @@ public class CallResult<T extends Item> {
     }
 
     public void addResult(T item, ResultCollector resultCollector) {
-        results.put(item, resultCollector);
+        addResult(item, new ResultSummary(resultCollector));
+    }
+
+    public void addResult(T item, ResultSummary summary) {
+        if (summary.isSuccess()) {
+            successCount++;
+        } else {
+            failureCount++;
+        }
+    }
+
+    /** Returns the number of items worked on successfully */
+    public int getSuccessCount() {
+        return successCount;
+    }
+
+    /** Returns the number of items where the work failed */
+    public int getFailureCount() {
+        return failureCount;
     }
 
     @Override
@@ -32,15 +52,9 @@ public class CallResult<T extends Item> {
         if (getErrorMessage() != null) {
             resultString.append(getErrorMessage()).append("\n");
         }
-        for (Map.Entry<T, ResultCollector> result : results.entrySet()) {
-            if (result.getValue().isSuccess()) {
-                resultString.append("Worked on ").append(
-                        result.getKey().getFullID()).append(" successfully\n");
-            } else {
-                resultString.append("Failed to process ").append(
-                        result.getKey().getFullID()).append("\n");
-            }
-
+        resultString.append("Worked on ").append(successCount).append(" items successfully\n");
+        if (failureCount > 0) {
+            resultString.append("Failed to process ").append(failureCount).append(" items\n");
         }
         return resultString.toString();
     }
@@ -56,10 +70,8 @@ public class CallResult<T extends Item> {
         if (fatalErrorEncountered()) {
             return 2;
         }
-        for (Map.Entry<T, ResultCollector> result : results.entrySet()) {
-            if (!result.getValue().isSuccess()) {
-                return 1;
-            }
+        if (failureCount > 0) {
+            return 1;
         }
         return 0;
     }
@@ -1,24 +1,24 @@
 package dk.statsbiblioteket.medieplatform.autonomous;
 
-import com.netflix.curator.framework.CuratorFramework;
-import com.netflix.curator.framework.state.ConnectionState;
-import com.netflix.curator.framework.state.ConnectionStateListener;
 import org.slf4j.Logger;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This listener listens for connection events in regards to the lock server. Our locks are only valid
  * as long as we maintain a connection to the lock server.
- * When the connection is suspended, execution should be paused. When the connection is lost, all
- * execution should stop, as we cannot ensure that the batches are locked anymore.
+ * When the connection is suspended or lost, execution should be paused, and the workers should hold their results.
+ * When the connection is re-established after being suspended, execution and the workers are resumed. If the
+ * connection was lost, the locks are gone, so the autonomous component locks the batches again before resuming the
+ * workers. If the connection stays lost, the autonomous component stops the workers, as we cannot ensure that the
+ * batches are locked anymore.
  */
-public class ConcurrencyConnectionStateListener implements ConnectionStateListener {
+public class ConcurrencyConnectionStateListener implements LockProvider.ConnectionStateListener {
     private static Logger log = org.slf4j.LoggerFactory.getLogger(ConcurrencyConnectionStateListener.class);
 
     private AutonomousComponent autonomousComponent;
-    private List<AutonomousWorker> autonomousWorkerList = new ArrayList<>();
+    private List<AutonomousWorker> autonomousWorkerList = new CopyOnWriteArrayList<>();
 
     /**
      * Constructs a new state listener
@@ -30,7 +30,7 @@ public class ConcurrencyConnectionStateListener implements ConnectionStateListen
     }
 
     @Override
-    public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    public void stateChanged(LockProvider.ConnectionState newState) {
         switch (newState) {
             case SUSPENDED:
                 log.error("Connection suspended");
@@ -40,12 +40,19 @@ public class ConcurrencyConnectionStateListener implements ConnectionStateListen
             case LOST:
                 log.error("Connection lost");
                 autonomousComponent.setStopped(true);
-                stopWorkers();
+                pauseWorkers();
                 break;
             default:
                 log.info("Connection event: {}", newState.name());
+                boolean locksLost = autonomousComponent.isLocksLost();
+                autonomousComponent.setStopped(false);
                 autonomousComponent.setPaused(false);
-                unpauseWorkers();
+                if (locksLost) {
+                    log.warn("The locks might have been lost with the connection, so the workers are resumed when "
+                             + "their batches have been checked, and locked again if needed");
+                } else {
+                    unpauseWorkers();
+                }
                 break;
         }
     }
@@ -65,10 +72,18 @@ public class ConcurrencyConnectionStateListener implements ConnectionStateListen
         }
     }
 
-    /** Stop all workers */
-    private void stopWorkers() {
+    /** Stop all workers, so they do not preserve their results */
+    public void stopWorkers() {
+        for (AutonomousWorker autonomousWorker : autonomousWorkerList) {
+            autonomousWorker.setStop(true);
+        }
+    }
+
+    /** Stop all workers, and cancel their work */
+    public void cancelWorkers() {
         for (AutonomousWorker autonomousWorker : autonomousWorkerList) {
             autonomousWorker.setStop(true);
+            autonomousWorker.getCancellationToken().cancel();
         }
     }
 
@@ -80,4 +95,13 @@ public class ConcurrencyConnectionStateListener implements ConnectionStateListen
     public void add(AutonomousWorker autonomousWorker) {
         autonomousWorkerList.add(autonomousWorker);
     }
+
+    /**
+     * Remove a batch worker from the list of executions to stop or suspend, when it is no longer running
+     *
+     * @param autonomousWorker the batch worker
+     */
+    public void remove(AutonomousWorker autonomousWorker) {
+        autonomousWorkerList.remove(autonomousWorker);
+    }
 }
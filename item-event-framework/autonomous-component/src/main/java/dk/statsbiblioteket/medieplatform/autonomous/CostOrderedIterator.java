@@ -0,0 +1,108 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Iterator reordering items so the items with the highest estimated cost come first. As the underlying iterator can
+ * be long, and is read lazily, only a window of the next items is read ahead and ordered. Items with the same cost
+ * keep their original order.
+ * <p>
+ * Starting the most expensive items first (longest processing time first) keeps a single large item from starting
+ * last, when the other workers are idle, and so shortens the total time of a run.
+ */
+public class CostOrderedIterator<T extends Item> implements Iterator<T> {
+
+    private static Logger log = LoggerFactory.getLogger(CostOrderedIterator.class);
+
+    private final Iterator<T> items;
+    private final ItemCostEstimator<T> costEstimator;
+    private final int lookahead;
+    private final PriorityQueue<EstimatedItem<T>> window;
+    private long sequence = 0;
+
+    /**
+     * Create a new cost ordered iterator
+     *
+     * @param items         the items to reorder
+     * @param costEstimator the estimator of the cost of the items
+     * @param lookahead     the number of items to read ahead and order. Must be at least 1
+     */
+    public CostOrderedIterator(Iterator<T> items, ItemCostEstimator<T> costEstimator, int lookahead) {
+        if (lookahead < 1) {
+            throw new IllegalArgumentException("lookahead must be at least 1, but was " + lookahead);
+        }
+        this.items = items;
+        this.costEstimator = costEstimator;
+        this.lookahead = lookahead;
+        this.window = new PriorityQueue<>(lookahead, new Comparator<EstimatedItem<T>>() {
+            @Override
+            public int compare(EstimatedItem<T> o1, EstimatedItem<T> o2) {
+                int result = Long.compare(o2.cost, o1.cost);
+                if (result == 0) {
+                    result = Long.compare(o1.sequence, o2.sequence);
+                }
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        fillWindow();
+        return !window.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        fillWindow();
+        EstimatedItem<T> next = window.poll();
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        return next.item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fillWindow() {
+        while (window.size() < lookahead && items.hasNext()) {
+            T item = items.next();
+            window.add(new EstimatedItem<>(item, estimateCost(item), sequence++));
+        }
+    }
+
+    private long estimateCost(T item) {
+        try {
+            long cost = costEstimator.estimateCost(item);
+            log.debug("Estimated cost of item {} is {}", item.getFullID(), cost);
+            return cost;
+        } catch (RuntimeException e) {
+            log.warn("Failed to estimate the cost of item {}, so treating the cost as unknown", item.getFullID(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * An item in the window, with the estimated cost and the position in the original order
+     */
+    private static class EstimatedItem<T> {
+        private final T item;
+        private final long cost;
+        private final long sequence;
+
+        private EstimatedItem(T item, long cost, long sequence) {
+            this.item = item;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.recipes.locks.InterProcessLock;
+import com.netflix.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock provider using a zookeeper lock server through curator. The locks are curator semaphore mutexes, so they
+ * exclude each other across all the machines using the same lock server.
+ */
+public class CuratorLockProvider implements LockProvider {
+
+    private final CuratorFramework lockClient;
+
+    /**
+     * Create a new lock provider
+     *
+     * @param lockClient the started lock client
+     */
+    public CuratorLockProvider(CuratorFramework lockClient) {
+        this.lockClient = lockClient;
+    }
+
+    /**
+     * Get the lock client, for other curator recipes
+     *
+     * @return the lock client
+     */
+    public CuratorFramework getLockClient() {
+        return lockClient;
+    }
+
+    @Override
+    public NamedLock getLock(String path) {
+        return new CuratorLock(new InterProcessSemaphoreMutex(lockClient, path));
+    }
+
+    @Override
+    public boolean isConnected() {
+        return lockClient.getZookeeperClient().isConnected();
+    }
+
+    @Override
+    public long getSessionId() {
+        try {
+            return lockClient.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void addConnectionStateListener(final ConnectionStateListener listener) {
+        lockClient.getConnectionStateListenable().addListener(
+                new com.netflix.curator.framework.state.ConnectionStateListener() {
+                    @Override
+                    public void stateChanged(CuratorFramework client,
+                                             com.netflix.curator.framework.state.ConnectionState newState) {
+                        listener.stateChanged(toConnectionState(newState));
+                    }
+                });
+    }
+
+    /**
+     * Close the lock client
+     */
+    @Override
+    public void close() {
+        lockClient.close();
+    }
+
+    private static ConnectionState toConnectionState(com.netflix.curator.framework.state.ConnectionState state) {
+        switch (state) {
+            case SUSPENDED:
+                return ConnectionState.SUSPENDED;
+            case LOST:
+                return ConnectionState.LOST;
+            case RECONNECTED:
+                return ConnectionState.RECONNECTED;
+            default:
+                return ConnectionState.CONNECTED;
+        }
+    }
+
+    /**
+     * Named lock wrapping a curator lock
+     */
+    public static class CuratorLock implements NamedLock {
+        private final InterProcessLock lock;
+
+        /**
+         * Wrap a curator lock
+         *
+         * @param lock the curator lock
+         */
+        public CuratorLock(InterProcessLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public boolean acquire(long timeout) throws LockingException {
+            try {
+                return lock.acquire(timeout, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                throw new LockingException("Failed to acquire lock", e);
+            }
+        }
+
+        @Override
+        public void release() throws LockingException {
+            if (!lock.isAcquiredInThisProcess()) {
+                return;
+            }
+            try {
+                lock.release();
+            } catch (IllegalStateException e) {
+                //Not held after all
+            } catch (Exception e) {
+                throw new LockingException("Failed to release lock", e);
+            }
+        }
+
+        @Override
+        public boolean isHeld() {
+            return lock.isAcquiredInThisProcess();
+        }
+    }
+}
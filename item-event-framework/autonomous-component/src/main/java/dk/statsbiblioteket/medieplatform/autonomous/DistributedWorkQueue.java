@@ -0,0 +1,309 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A work queue shared by all the instances of an autonomous component, kept in the lock server.
+ * <p>
+ * One of the instances is elected as the publisher. Only the publisher queries the event trigger, and publishes the
+ * triggered items to the queue. All the instances, including the publisher, take items from the queue. An item is
+ * taken by acquiring a lease on it, which is an ephemeral node in the lock server. The lease lives as long as the
+ * session of the instance holding it, which is kept alive by the heartbeats of the lock client. If the instance dies,
+ * the lease expires, and another instance can take the item. When the lease is released, after the work on the item
+ * is done, the item is removed from the queue.
+ * <p>
+ * The items are kept in the queue as their full ID and doms ID, and recreated with the item factory when taken.
+ * <p>
+ * The leases replace the item locks of the autonomous component, so all the instances of a component must either use
+ * the queue, or not.
+ */
+public class DistributedWorkQueue<T extends Item> implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(DistributedWorkQueue.class);
+    private static final String ENCODING = "UTF-8";
+
+    private final CuratorFramework lockClient;
+    private final ItemFactory<T> itemFactory;
+    private final String itemsPath;
+    private final String leasesPath;
+    private final LeaderLatch leaderLatch;
+
+    /**
+     * Create a new work queue. The queue must be started before use.
+     *
+     * @param lockClient    the started lock client
+     * @param componentName the name of the component, which is shared by all instances of the component
+     * @param itemFactory   the factory to recreate the items taken from the queue
+     */
+    public DistributedWorkQueue(CuratorFramework lockClient, String componentName, ItemFactory<T> itemFactory) {
+        this.lockClient = lockClient;
+        this.itemFactory = itemFactory;
+        String queuePath = "/queue/" + componentName;
+        this.itemsPath = queuePath + "/items";
+        this.leasesPath = queuePath + "/leases";
+        this.leaderLatch = new LeaderLatch(lockClient, queuePath + "/publisher");
+    }
+
+    /**
+     * Start the queue, and join the election of the publisher
+     *
+     * @throws LockingException if the lock server could not be reached
+     */
+    public void start() throws LockingException {
+        try {
+            ensurePath(itemsPath);
+            ensurePath(leasesPath);
+            leaderLatch.start();
+        } catch (Exception e) {
+            throw new LockingException("Failed to start the work queue", e);
+        }
+    }
+
+    /**
+     * Leave the election of the publisher. Leases held by this instance are not released.
+     *
+     * @throws IOException if leaving the election failed
+     */
+    @Override
+    public void close() throws IOException {
+        leaderLatch.close();
+    }
+
+    /**
+     * Check if this instance is the publisher, ie. the instance that should query the event trigger and publish the
+     * triggered items
+     *
+     * @return true if this instance is the publisher
+     */
+    public boolean isPublisher() {
+        return leaderLatch.hasLeadership();
+    }
+
+    /**
+     * Publish items to the queue. Items that are already in the queue are not published again.
+     *
+     * @param items the items to publish
+     *
+     * @return the number of items added to the queue
+     * @throws LockingException if the lock server could not be reached
+     */
+    public int publish(Iterator<T> items) throws LockingException {
+        int published = 0;
+        while (items.hasNext()) {
+            T item = items.next();
+            String domsID = item.getDomsID() == null ? "" : item.getDomsID();
+            try {
+                lockClient.create().forPath(getItemPath(item), domsID.getBytes(ENCODING));
+                published++;
+            } catch (KeeperException.NodeExistsException e) {
+                log.trace("Item {} already in the queue", item.getFullID());
+            } catch (Exception e) {
+                throw new LockingException("Failed to publish item " + item.getFullID(), e);
+            }
+        }
+        log.debug("Published {} items to the queue", published);
+        return published;
+    }
+
+    /**
+     * Get the items in the queue, that are not leased by anyone, in the order they were published
+     *
+     * @return the items available in the queue
+     * @throws LockingException if the lock server could not be reached
+     */
+    public Iterator<T> getQueuedItems() throws LockingException {
+        try {
+            Set<String> leased = new HashSet<>(lockClient.getChildren().forPath(leasesPath));
+            List<QueuedItem> queued = new ArrayList<>();
+            for (String name : lockClient.getChildren().forPath(itemsPath)) {
+                if (leased.contains(name)) {
+                    continue;
+                }
+                Stat stat = new Stat();
+                byte[] domsID;
+                try {
+                    domsID = lockClient.getData().storingStatIn(stat).forPath(itemsPath + "/" + name);
+                } catch (KeeperException.NoNodeException e) {
+                    //Removed from the queue since we listed it
+                    continue;
+                }
+                T item = itemFactory.create(URLDecoder.decode(name, ENCODING));
+                if (domsID != null && domsID.length > 0) {
+                    item.setDomsID(new String(domsID, ENCODING));
+                }
+                queued.add(new QueuedItem(item, stat.getCtime()));
+            }
+            Collections.sort(queued, new Comparator<QueuedItem>() {
+                @Override
+                public int compare(QueuedItem o1, QueuedItem o2) {
+                    return Long.compare(o1.published, o2.published);
+                }
+            });
+            List<T> result = new ArrayList<>(queued.size());
+            for (QueuedItem queuedItem : queued) {
+                result.add(queuedItem.item);
+            }
+            return result.iterator();
+        } catch (Exception e) {
+            throw new LockingException("Failed to read the work queue", e);
+        }
+    }
+
+    /**
+     * Get the lease for an item in the queue. The lease is used as the lock of the item. Releasing the lease removes
+     * the item from the queue.
+     *
+     * @param item the item
+     *
+     * @return the lease, not yet acquired
+     */
+    public NamedLock getLease(T item) {
+        return new Lease(getItemPath(item), leasesPath + "/" + encode(item.getFullID()));
+    }
+
+    private String getItemPath(T item) {
+        return itemsPath + "/" + encode(item.getFullID());
+    }
+
+    private static String encode(String fullID) {
+        try {
+            return URLEncoder.encode(fullID, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not known", e);
+        }
+    }
+
+    private void ensurePath(String path) throws Exception {
+        try {
+            lockClient.create().creatingParentsIfNeeded().forPath(path);
+        } catch (KeeperException.NodeExistsException e) {
+            //Already there
+        }
+    }
+
+    /**
+     * An item in the queue, with the time it was published
+     */
+    private class QueuedItem {
+        private final T item;
+        private final long published;
+
+        private QueuedItem(T item, long published) {
+            this.item = item;
+            this.published = published;
+        }
+    }
+
+    /**
+     * The lease of an item in the queue. The lease is an ephemeral node, so it expires with the session of the lock
+     * client.
+     */
+    private class Lease implements NamedLock {
+        private final String itemPath;
+        private final String leasePath;
+        private volatile boolean acquired = false;
+
+        private Lease(String itemPath, String leasePath) {
+            this.itemPath = itemPath;
+            this.leasePath = leasePath;
+        }
+
+        /**
+         * Acquire the lease. If the item is no longer in the queue, the lease cannot be acquired.
+         *
+         * @param timeout the max number of milliseconds to wait for another instance to release the lease
+         *
+         * @return true if the lease was acquired
+         * @throws LockingException if the lock server could not be reached
+         */
+        @Override
+        public boolean acquire(long timeout) throws LockingException {
+            try {
+                return tryAcquire(timeout);
+            } catch (Exception e) {
+                throw new LockingException("Failed to acquire lease", e);
+            }
+        }
+
+        private boolean tryAcquire(long timeout) throws Exception {
+            long start = System.currentTimeMillis();
+            while (true) {
+                try {
+                    lockClient.create().withMode(CreateMode.EPHEMERAL).forPath(leasePath);
+                    if (lockClient.checkExists().forPath(itemPath) == null) {
+                        //The item was taken and completed by someone else before we got the lease
+                        lockClient.delete().forPath(leasePath);
+                        return false;
+                    }
+                    acquired = true;
+                    return true;
+                } catch (KeeperException.NodeExistsException e) {
+                    final CountDownLatch released = new CountDownLatch(1);
+                    Stat stat = lockClient.checkExists().usingWatcher(new Watcher() {
+                        @Override
+                        public void process(WatchedEvent event) {
+                            released.countDown();
+                        }
+                    }).forPath(leasePath);
+                    if (stat != null) {
+                        long remaining = timeout - (System.currentTimeMillis() - start);
+                        if (remaining <= 0 || !released.await(remaining, TimeUnit.MILLISECONDS)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Release the lease, and remove the item from the queue
+         *
+         * @throws LockingException if the lock server could not be reached
+         */
+        @Override
+        public void release() throws LockingException {
+            if (!acquired) {
+                return;
+            }
+            acquired = false;
+            try {
+                try {
+                    lockClient.delete().forPath(itemPath);
+                } catch (KeeperException.NoNodeException e) {
+                    //Already removed
+                }
+                lockClient.delete().forPath(leasePath);
+            } catch (Exception e) {
+                throw new LockingException("Failed to release lease", e);
+            }
+        }
+
+        @Override
+        public boolean isHeld() {
+            return acquired;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * Journal on local disk of events to be stored in the event storer. An event is journaled before it is stored, and
+ * removed from the journal when it has been stored. If storing the event fails, because the backend is down or the
+ * worker was stopped, the event stays in the journal, and is stored when the journal is replayed.
+ * <p>
+ * Each pending event is a file in the journal directory, named from the full ID of the item and the event type, so
+ * there is at most one pending event of each type for each item. Items with pending events are considered already
+ * worked on, so they are not worked on again.
+ * <p>
+ * An event that fails to be stored for other reasons than a communication failure is tried at most
+ * {@link #setMaxAttempts(int) maxAttempts} times. Then it is moved aside, to a file with the suffix .failed, so its
+ * item can be worked on again. Entries that cannot be read are moved aside at once. The failed events are kept for
+ * inspection.
+ */
+public class EventOutbox<T extends Item> {
+
+    private static Logger log = LoggerFactory.getLogger(EventOutbox.class);
+    private static final String ENCODING = "UTF-8";
+    private static final String SEPARATOR = "~";
+    private static final String SUFFIX = ".xml";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private static final String FULL_ID = "fullID";
+    private static final String DOMS_ID = "domsID";
+    private static final String AGENT = "agent";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String DETAILS = "details";
+    private static final String EVENT_TYPE = "eventType";
+    private static final String OUTCOME = "outcome";
+    private static final String ATTEMPTS = "attempts";
+
+    private final File directory;
+    private final ItemFactory<T> itemFactory;
+    private int maxAttempts = 5;
+
+    /**
+     * Create a new outbox. The directory is created if it does not exist.
+     *
+     * @param directory   the journal directory. Must not be shared with other components
+     * @param itemFactory the factory to recreate the items of the journaled events
+     */
+    public EventOutbox(File directory, ItemFactory<T> itemFactory) {
+        this.directory = directory;
+        this.itemFactory = itemFactory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new InitialisationException("Unable to create outbox directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Journal an event. The journal entry is written to a temporary file and moved in place, so a crash never
+     * leaves a partial entry.
+     *
+     * @param item      the item
+     * @param agent     the agent of the event
+     * @param timestamp the timestamp of the event
+     * @param details   details about the OUTCOME of the event
+     * @param eventType the type of event
+     * @param outcome   true if the event was a success, false otherwise
+     *
+     * @return the journal entry, to be removed when the event is stored
+     * @throws IOException if the entry could not be written
+     */
+    public File add(T item, String agent, Date timestamp, String details, String eventType, boolean outcome) throws
+                                                                                                              IOException {
+        Properties entry = new Properties();
+        entry.setProperty(FULL_ID, item.getFullID());
+        if (item.getDomsID() != null) {
+            entry.setProperty(DOMS_ID, item.getDomsID());
+        }
+        entry.setProperty(AGENT, agent);
+        entry.setProperty(TIMESTAMP, Long.toString(timestamp.getTime()));
+        entry.setProperty(DETAILS, details);
+        entry.setProperty(EVENT_TYPE, eventType);
+        entry.setProperty(OUTCOME, Boolean.toString(outcome));
+        File file = getEntryFile(item, eventType);
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            entry.storeToXML(out, null, ENCODING);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Journaled event {} for item {}", eventType, item.getFullID());
+        return file;
+    }
+
+    /**
+     * Remove an event from the journal, when it has been stored
+     *
+     * @param entry the journal entry
+     */
+    public void remove(File entry) {
+        if (!entry.delete() && entry.exists()) {
+            log.warn("Failed to remove {} from the outbox. The event will be stored again", entry.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Check if an item has a pending event of the given type
+     *
+     * @param item      the item
+     * @param eventType the type of event
+     *
+     * @return true if the event is journaled, but not yet stored
+     */
+    public boolean isPending(T item, String eventType) {
+        return getEntryFile(item, eventType).exists();
+    }
+
+    /**
+     * Store the journaled events. Replaying stops at the first communication failure, as the backend is probably
+     * still down, and the rest of the events are kept for the next replay.
+     *
+     * @param eventStorer the event storer to store the events in
+     *
+     * @return the number of events stored
+     */
+    public int replay(EventStorer<T> eventStorer) {
+        return replay(eventStorer, null);
+    }
+
+    /**
+     * Store the journaled events, while holding the lock of their items. Replaying stops at the first communication
+     * failure, as the backend is probably still down, and the rest of the events are kept for the next replay.
+     *
+     * @param eventStorer the event storer to store the events in
+     * @param guard       the guard locking the items while their events are stored, or null to not lock them
+     *
+     * @return the number of events stored
+     */
+    public int replay(EventStorer<T> eventStorer, ReplayGuard<T> guard) {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return 0;
+        }
+        int stored = 0;
+        for (File entry : entries) {
+            if (!entry.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            Properties event = new Properties();
+            try (InputStream in = new FileInputStream(entry)) {
+                event.loadFromXML(in);
+            } catch (IOException e) {
+                log.error("Unable to read {} from the outbox, moving it aside", entry.getAbsolutePath(), e);
+                moveAside(entry);
+                continue;
+            }
+            T item = itemFactory.create(event.getProperty(FULL_ID));
+            if (event.getProperty(DOMS_ID) != null) {
+                item.setDomsID(event.getProperty(DOMS_ID));
+            }
+            NamedLock lock = null;
+            try {
+                if (guard != null) {
+                    lock = guard.lock(item);
+                    if (lock == null) {
+                        log.info("Item {} is locked by someone else, so storing the journaled event {} later",
+                                 item.getFullID(), event.getProperty(EVENT_TYPE));
+                        continue;
+                    }
+                    if (!guard.isStillWanted(item)) {
+                        log.warn("Item {} have been worked on by someone else, so discarding the journaled event {}",
+                                 item.getFullID(), event.getProperty(EVENT_TYPE));
+                        remove(entry);
+                        continue;
+                    }
+                }
+                eventStorer.appendEventToItem(item,
+                                              event.getProperty(AGENT),
+                                              new Date(Long.parseLong(event.getProperty(TIMESTAMP))),
+                                              event.getProperty(DETAILS),
+                                              event.getProperty(EVENT_TYPE),
+                                              Boolean.parseBoolean(event.getProperty(OUTCOME)));
+                log.info("Stored journaled event {} for item {}", event.getProperty(EVENT_TYPE), item.getFullID());
+                remove(entry);
+                stored++;
+            } catch (CommunicationException | LockingException e) {
+                log.warn("Failed to store journaled events, will try again later", e);
+                break;
+            } catch (NotFoundException e) {
+                log.error("Item {} no longer exists, so discarding the journaled event {}", item.getFullID(),
+                          event.getProperty(EVENT_TYPE), e);
+                remove(entry);
+            } catch (RuntimeException e) {
+                log.error("Failed to store journaled event {} for item {}", event.getProperty(EVENT_TYPE),
+                          item.getFullID(), e);
+                recordFailedAttempt(entry, event);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (LockingException e) {
+                        log.warn("Caught exception while trying to release lock", e);
+                    }
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Count a failed attempt to store a journaled event. When the max number of attempts have been made, the entry is
+     * moved aside, so the event is not tried again.
+     *
+     * @param entry the journal entry
+     * @param event the journaled event
+     */
+    private void recordFailedAttempt(File entry, Properties event) {
+        int attempts;
+        try {
+            attempts = Integer.parseInt(event.getProperty(ATTEMPTS, "0")) + 1;
+        } catch (NumberFormatException e) {
+            attempts = maxAttempts;
+        }
+        if (attempts >= maxAttempts) {
+            log.error("Failed to store {} {} times, moving it aside", entry.getAbsolutePath(), attempts);
+            moveAside(entry);
+            return;
+        }
+        event.setProperty(ATTEMPTS, Integer.toString(attempts));
+        try {
+            File temp = File.createTempFile(entry.getName(), ".tmp", directory);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                event.storeToXML(out, null, ENCODING);
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Unable to count the failed attempt to store {}, moving it aside", entry.getAbsolutePath(), e);
+            moveAside(entry);
+        }
+    }
+
+    /**
+     * Move a journal entry aside, so it is no longer pending, but kept for inspection
+     *
+     * @param entry the journal entry
+     */
+    private void moveAside(File entry) {
+        File failed = new File(directory, entry.getName() + FAILED_SUFFIX);
+        try {
+            Files.move(entry.toPath(), failed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Unable to move {} aside, so discarding it", entry.getAbsolutePath(), e);
+            remove(entry);
+        }
+    }
+
+    /**
+     * Set the number of times an event that fails to be stored is tried, before it is moved aside. Communication
+     * failures are not counted, as the backend is expected to recover.
+     *
+     * @param maxAttempts the max number of attempts. Default 5
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    private File getEntryFile(T item, String eventType) {
+        return new File(directory, encode(item.getFullID()) + SEPARATOR + encode(eventType) + SUFFIX);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not known", e);
+        }
+    }
+
+    /**
+     * Guard of the items of the journaled events, so an event is only stored while the item is locked, and not worked
+     * on by someone else
+     */
+    public interface ReplayGuard<T extends Item> {
+
+        /**
+         * Lock the item of a journaled event, before the event is stored. Do not wait if the item is locked by
+         * someone else.
+         *
+         * @param item the item
+         *
+         * @return the acquired lock, or null if the item is locked by someone else, so the event is stored later
+         * @throws LockingException if the locking framework fails
+         */
+        NamedLock lock(T item) throws LockingException;
+
+        /**
+         * Check, while the item is locked, that the journaled event should still be stored
+         *
+         * @param item the item
+         *
+         * @return false if the item have been worked on by someone else, so the event is discarded
+         * @throws CommunicationException if the check failed
+         */
+        boolean isStillWanted(T item) throws CommunicationException;
+    }
+}
@@ -0,0 +1,120 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Checkpoint of the work on an item, kept on local disk. Each completed subtree is a file in the checkpoint
+ * directory, named from the name of the subtree, holding the report of the failures found in the subtree.
+ * <p>
+ * Checkpointing is best effort. If a completed subtree could not be recorded, it is just worked on again when the
+ * work is resumed.
+ */
+public class FileCheckpoint implements Checkpoint {
+
+    private static Logger log = LoggerFactory.getLogger(FileCheckpoint.class);
+    private static final String ENCODING = "UTF-8";
+    private static final String SUFFIX = ".xml";
+
+    private final File directory;
+
+    /**
+     * Create a new checkpoint
+     *
+     * @param checkpointDirectory the checkpoint directory of the component. Must not be shared with other components
+     * @param item                the item worked on
+     */
+    public FileCheckpoint(File checkpointDirectory, Item item) {
+        this.directory = new File(checkpointDirectory, encode(item.getFullID()));
+    }
+
+    @Override
+    public boolean isCompleted(String subtree) {
+        return getSubtreeFile(subtree).exists();
+    }
+
+    @Override
+    public void markCompleted(String subtree, ResultCollector failures) {
+        File file = getSubtreeFile(subtree);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create checkpoint directory " + directory.getAbsolutePath());
+            }
+            File temp = File.createTempFile(file.getName(), ".tmp", directory);
+            Files.write(temp.toPath(), failures.toReport().getBytes(ENCODING));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to checkpoint {}, so it will be worked on again if the work is resumed", subtree, e);
+        }
+    }
+
+    @Override
+    public void restoreInto(ResultCollector resultCollector) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                String report = new String(Files.readAllBytes(file.toPath()), Charset.forName(ENCODING));
+                ResultCollector.fromReport(report).mergeInto(resultCollector);
+                log.info("Resuming after completed subtree {}", decode(file.getName()));
+            } catch (IOException | JAXBException e) {
+                log.warn("Unable to read checkpoint {}, so the subtree will be worked on again",
+                         file.getAbsolutePath(), e);
+                if (!file.delete()) {
+                    log.warn("Failed to remove checkpoint {}", file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Failed to remove checkpoint {}", file.getAbsolutePath());
+                }
+            }
+        }
+        if (directory.exists() && !directory.delete()) {
+            log.warn("Failed to remove checkpoint directory {}", directory.getAbsolutePath());
+        }
+    }
+
+    private File getSubtreeFile(String subtree) {
+        return new File(directory, encode(subtree) + SUFFIX);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not known", e);
+        }
+    }
+
+    private static String decode(String fileName) {
+        try {
+            return URLDecoder.decode(fileName.substring(0, fileName.length() - SUFFIX.length()), ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not known", e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short lived local record of the items that are locked by other instances of a component. Items that another
+ * instance works on for hours would otherwise be found, fetched from DOMS and tried locked on every poll.
+ * <p>
+ * When an item could not be locked, it is added with the path of its lock, and a watch is set on the lease nodes of
+ * the lock in the lock server. When the lease is released, the watch fires and the item is removed, so it is tried
+ * again on the next poll. As a watch can be lost, for instance when the connection to the lock server is interrupted,
+ * items are also removed when they have been held for longer than the max age.
+ * <p>
+ * This only works with the {@link CuratorLockProvider}, as it depends on the layout of the curator semaphore mutex in
+ * the lock server.
+ */
+public class HeldElsewhereCache {
+
+    private static Logger log = LoggerFactory.getLogger(HeldElsewhereCache.class);
+
+    private final CuratorFramework lockClient;
+    private final long maxAge;
+    private final Map<String, HeldItem> held = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new cache
+     *
+     * @param lockClient the started lock client
+     * @param maxAge     the max number of milliseconds to remember an item as held elsewhere
+     */
+    public HeldElsewhereCache(CuratorFramework lockClient, long maxAge) {
+        this.lockClient = lockClient;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Remember that an item is locked by someone else, until the lock is released. If the lock is already released,
+     * the item is not remembered.
+     *
+     * @param lockPath the path of the lock of the item
+     * @param item     the item
+     */
+    public void add(final String lockPath, Item item) {
+        held.put(lockPath, new HeldItem(item.getDomsID()));
+        try {
+            Watcher watcher = new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if (held.remove(lockPath) != null) {
+                        log.debug("Lock {} released elsewhere", lockPath);
+                    }
+                }
+            };
+            if (lockClient.getChildren().usingWatcher(watcher).forPath(lockPath).isEmpty()) {
+                held.remove(lockPath);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            //Released since we tried to lock it
+            held.remove(lockPath);
+        } catch (Exception e) {
+            log.warn("Failed to watch lock {}, so not remembering it", lockPath, e);
+            held.remove(lockPath);
+        }
+    }
+
+    /**
+     * Check if an item is known to be locked by someone else
+     *
+     * @param lockPath the path of the lock of the item
+     *
+     * @return true if the item is held elsewhere
+     */
+    public boolean contains(String lockPath) {
+        HeldItem heldItem = held.get(lockPath);
+        if (heldItem == null) {
+            return false;
+        }
+        if (heldItem.isExpired()) {
+            held.remove(lockPath);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the DOMS IDs of the items known to be locked by someone else, so they can be left out of queries
+     *
+     * @return the DOMS IDs
+     */
+    public Set<String> getDomsIDs() {
+        Set<String> domsIDs = new HashSet<>();
+        for (Iterator<HeldItem> iterator = held.values().iterator(); iterator.hasNext(); ) {
+            HeldItem heldItem = iterator.next();
+            if (heldItem.isExpired()) {
+                iterator.remove();
+            } else if (heldItem.domsID != null) {
+                domsIDs.add(heldItem.domsID);
+            }
+        }
+        return domsIDs;
+    }
+
+    /**
+     * An item held elsewhere, with the time it was found held
+     */
+    private class HeldItem {
+        private final String domsID;
+        private final long since = System.currentTimeMillis();
+
+        private HeldItem(String domsID) {
+            this.domsID = domsID;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - since > maxAge;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock provider for components running in a single JVM. The locks only exclude each other within this JVM, so this
+ * provider must not be used if several instances of a component run on different machines. There is no lock server,
+ * so locking costs no round trips, and the connection is never lost.
+ * <p>
+ * Each path has its own semaphore. The semaphores are kept for the lifetime of the provider, so the memory used grows
+ * with the number of distinct items locked.
+ */
+public class InProcessLockProvider implements LockProvider {
+
+    private final ConcurrentMap<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    @Override
+    public NamedLock getLock(String path) {
+        Semaphore semaphore = semaphores.get(path);
+        if (semaphore == null) {
+            Semaphore newSemaphore = new Semaphore(1);
+            semaphore = semaphores.putIfAbsent(path, newSemaphore);
+            if (semaphore == null) {
+                semaphore = newSemaphore;
+            }
+        }
+        return new InProcessLock(semaphore);
+    }
+
+    /**
+     * Always connected, as there is no lock server
+     *
+     * @return true
+     */
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * There is only the one session, which never expires
+     *
+     * @return 1
+     */
+    @Override
+    public long getSessionId() {
+        return 1;
+    }
+
+    /**
+     * The connection state never changes, so the listener is never called
+     *
+     * @param listener the listener
+     */
+    @Override
+    public void addConnectionStateListener(ConnectionStateListener listener) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Named lock backed by a semaphore shared by all locks with the same path
+     */
+    private static class InProcessLock implements NamedLock {
+        private final Semaphore semaphore;
+        private volatile boolean held = false;
+
+        private InProcessLock(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public boolean acquire(long timeout) throws LockingException {
+            if (held) {
+                return false;
+            }
+            try {
+                held = semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+                return held;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LockingException("Interrupted while acquiring lock", e);
+            }
+        }
+
+        @Override
+        public synchronized void release() {
+            if (held) {
+                held = false;
+                semaphore.release();
+            }
+        }
+
+        @Override
+        public boolean isHeld() {
+            return held;
+        }
+    }
+}
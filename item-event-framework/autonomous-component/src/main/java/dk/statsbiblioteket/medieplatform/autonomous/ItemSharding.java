@@ -0,0 +1,280 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Assigns triggered items to the instances of an autonomous component, so the instances do not all compete for the
+ * same items.
+ * <p>
+ * Each instance registers itself as an ephemeral node in the lock server. The items are assigned to the live
+ * instances by consistent hashing of their full ID, so when an instance joins or leaves, only the items of that
+ * instance are moved. The assignment is only a preference: each instance tries to claim its own items first, and the
+ * items of other instances only when it has run out of its own. The item locks still decide who works on an item, so
+ * an item is never lost when an instance dies, and an instance is never idle while there is work.
+ */
+public class ItemSharding implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(ItemSharding.class);
+
+    /**
+     * The number of points on the hash ring for each instance, to spread the items evenly
+     */
+    static final int VIRTUAL_NODES = 100;
+
+    private final CuratorFramework lockClient;
+    private final String instancesPath;
+    private final String instanceId;
+    private volatile SortedMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Create a new sharding. The sharding must be started before use.
+     *
+     * @param lockClient    the started lock client
+     * @param componentName the name of the component, which is shared by all instances of the component
+     * @param instanceId    the ID of this instance, unique among the instances of the component
+     */
+    public ItemSharding(CuratorFramework lockClient, String componentName, String instanceId) {
+        this.lockClient = lockClient;
+        this.instancesPath = "/instances/" + componentName;
+        this.instanceId = encode(instanceId);
+    }
+
+    /**
+     * Create an instance ID from the name of this host and a random part, so several instances can run on the same
+     * host
+     *
+     * @return a new instance ID
+     */
+    public static String newInstanceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        return host + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Start the sharding, by registering this instance in the lock server
+     *
+     * @throws LockingException if the lock server could not be reached
+     */
+    public void start() throws LockingException {
+        try {
+            try {
+                lockClient.create().creatingParentsIfNeeded().forPath(instancesPath);
+            } catch (KeeperException.NodeExistsException e) {
+                //Already there
+            }
+            register();
+        } catch (Exception e) {
+            throw new LockingException("Failed to register instance " + instanceId, e);
+        }
+        refresh();
+    }
+
+    private void register() throws Exception {
+        try {
+            lockClient.create().withMode(CreateMode.EPHEMERAL).forPath(instancesPath + "/" + instanceId);
+        } catch (KeeperException.NodeExistsException e) {
+            //Already registered
+        }
+    }
+
+    /**
+     * Unregister this instance. The items of this instance are assigned to the other instances when they next
+     * refresh.
+     *
+     * @throws IOException if the lock server could not be reached
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            lockClient.delete().forPath(instancesPath + "/" + instanceId);
+        } catch (KeeperException.NoNodeException e) {
+            //Already gone, for instance with the session
+        } catch (Exception e) {
+            throw new IOException("Failed to unregister instance " + instanceId, e);
+        }
+    }
+
+    /**
+     * Read the live instances from the lock server, and rebuild the assignment of items. If this instance is no longer
+     * registered, as its session expired, it is registered again.
+     *
+     * @throws LockingException if the lock server could not be reached
+     */
+    public void refresh() throws LockingException {
+        try {
+            List<String> instances = lockClient.getChildren().forPath(instancesPath);
+            if (!instances.contains(instanceId)) {
+                log.info("Instance {} no longer registered, so registering again", instanceId);
+                register();
+                instances = new ArrayList<>(instances);
+                instances.add(instanceId);
+            }
+            ring = buildRing(instances);
+            log.debug("Sharding items across {} instances", instances.size());
+        } catch (Exception e) {
+            throw new LockingException("Failed to read the instances of the component", e);
+        }
+    }
+
+    static SortedMap<Long, String> buildRing(Collection<String> instances) {
+        SortedMap<Long, String> ring = new TreeMap<>();
+        for (String instance : instances) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(instance + "#" + i), instance);
+            }
+        }
+        return ring;
+    }
+
+    static String getOwner(SortedMap<Long, String> ring, String fullID) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, String> tail = ring.tailMap(hash(fullID));
+        return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Check if an item is assigned to this instance. Before the first refresh, all items are.
+     *
+     * @param item the item
+     *
+     * @return true if the item is assigned to this instance
+     */
+    public boolean isOwnItem(Item item) {
+        SortedMap<Long, String> current = ring;
+        return current.isEmpty() || instanceId.equals(getOwner(current, item.getFullID()));
+    }
+
+    /**
+     * Reorder the items, so the items assigned to this instance come first. The items of this instance are returned
+     * as they are read, while the items of other instances are held back until the given items are exhausted, or
+     * the max number of items are held back. Then the items held back the longest are returned, so memory is bounded
+     * even if this instance owns few of the items. The order is otherwise kept.
+     *
+     * @param items       the items
+     * @param maxHeldBack the max number of items of other instances to hold back, at least 1
+     *
+     * @return the same items, the items of this instance first
+     */
+    public <T extends Item> Iterator<T> ownItemsFirst(Iterator<T> items, int maxHeldBack) {
+        return new OwnItemsFirstIterator<>(items, Math.max(1, maxHeldBack));
+    }
+
+    /**
+     * Get the ID of this instance, as registered in the lock server
+     *
+     * @return the instance ID
+     */
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(Charset.forName("UTF-8")));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("MD5 not known", e);
+        }
+    }
+
+    private static String encode(String instanceId) {
+        try {
+            return URLEncoder.encode(instanceId, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not known", e);
+        }
+    }
+
+    /**
+     * Iterator returning the items of this instance as they are read, and the items of other instances when the
+     * wrapped iterator is exhausted, or too many items of other instances are held back
+     */
+    private class OwnItemsFirstIterator<T extends Item> implements Iterator<T>, Closeable {
+        private final Iterator<T> delegate;
+        private final int maxHeldBack;
+        private final Deque<T> others = new ArrayDeque<>();
+        private T next = null;
+
+        private OwnItemsFirstIterator(Iterator<T> delegate, int maxHeldBack) {
+            this.delegate = delegate;
+            this.maxHeldBack = maxHeldBack;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            while (others.size() < maxHeldBack && delegate.hasNext()) {
+                T item = delegate.next();
+                if (isOwnItem(item)) {
+                    next = item;
+                    return true;
+                }
+                others.add(item);
+            }
+            if (others.size() >= maxHeldBack) {
+                log.debug("Holding back {} items of other instances, so trying the first of them", others.size());
+            }
+            next = others.poll();
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate instanceof Closeable) {
+                ((Closeable) delegate).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import java.io.Closeable;
+
+/**
+ * Provider of the named locks used by the autonomous components to coordinate their work. The locks are only valid as
+ * long as the provider is connected to its lock server, so the provider reports changes in the connection state to
+ * the registered listeners.
+ *
+ * @see CuratorLockProvider
+ * @see InProcessLockProvider
+ */
+public interface LockProvider extends Closeable {
+
+    /**
+     * Get the lock with the given path. Locks with the same path exclude each other, regardless of which instance of
+     * the lock is used.
+     *
+     * @param path the path of the lock
+     *
+     * @return the lock, not yet acquired
+     */
+    NamedLock getLock(String path);
+
+    /**
+     * Check if the provider is currently connected to its lock server
+     *
+     * @return true if connected
+     */
+    boolean isConnected();
+
+    /**
+     * Get the ID of the current session with the lock server. The locks are held by the session, so if the session
+     * have changed since a lock was acquired, as when the connection was lost for longer than the session timeout,
+     * the lock is gone. If the session is the same, the lock is still held, even if the connection was lost meanwhile.
+     *
+     * @return the session ID, or 0 if there is no session
+     */
+    long getSessionId();
+
+    /**
+     * Register a listener for changes in the connection state
+     *
+     * @param listener the listener
+     */
+    void addConnectionStateListener(ConnectionStateListener listener);
+
+    /**
+     * The state of the connection to the lock server
+     */
+    public enum ConnectionState {
+        /** The connection have been established for the first time */
+        CONNECTED,
+        /** The connection have been interrupted. The locks might still be valid, if the connection is restored */
+        SUSPENDED,
+        /** The connection have been restored, and the locks are still valid */
+        RECONNECTED,
+        /** The connection have been lost, and all locks are invalid */
+        LOST
+    }
+
+    /**
+     * Listener for changes in the connection state
+     */
+    public interface ConnectionStateListener {
+
+        /**
+         * Called when the connection state changes
+         *
+         * @param newState the new connection state
+         */
+        void stateChanged(ConnectionState newState);
+    }
+}
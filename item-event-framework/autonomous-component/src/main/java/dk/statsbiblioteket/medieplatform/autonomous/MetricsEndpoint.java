@@ -0,0 +1,150 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Exposes scheduling metrics of the components in this process. The metrics are served in the Prometheus text format
+ * at /metrics over HTTP, on a port shared by all components in the process, and registered over JMX.
+ * <p>
+ * The requests are handled on daemon threads, and the endpoint is stopped when it no longer serves the metrics of any
+ * component, so it does not keep the JVM alive when the components are done.
+ */
+public class MetricsEndpoint implements HttpHandler {
+
+    private static Logger log = LoggerFactory.getLogger(MetricsEndpoint.class);
+    private static final Map<Integer, MetricsEndpoint> endpoints = new HashMap<>();
+
+    private final List<SchedulingMetrics> metrics = new CopyOnWriteArrayList<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-endpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        log.info("Serving metrics on port {}", server.getAddress().getPort());
+    }
+
+    /**
+     * Get the endpoint serving on the given port, starting it if it is not already started
+     *
+     * @param port the port
+     *
+     * @return the endpoint
+     * @throws IOException if the endpoint could not be started
+     */
+    public static synchronized MetricsEndpoint getEndpoint(int port) throws IOException {
+        MetricsEndpoint endpoint = endpoints.get(port);
+        if (endpoint == null) {
+            endpoint = new MetricsEndpoint(port);
+            endpoints.put(port, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Serve the metrics of a component from this endpoint
+     *
+     * @param componentMetrics the metrics of the component
+     */
+    public void add(SchedulingMetrics componentMetrics) {
+        metrics.add(componentMetrics);
+    }
+
+    /**
+     * Stop serving the metrics of a component, when the component is done. Endpoints no longer serving the metrics of
+     * any component are stopped.
+     *
+     * @param componentMetrics the metrics of the component
+     */
+    public static synchronized void stopServing(SchedulingMetrics componentMetrics) {
+        Iterator<MetricsEndpoint> iterator = endpoints.values().iterator();
+        while (iterator.hasNext()) {
+            MetricsEndpoint endpoint = iterator.next();
+            endpoint.metrics.remove(componentMetrics);
+            if (endpoint.metrics.isEmpty()) {
+                log.info("No more metrics to serve on port {}, so stopping", endpoint.getPort());
+                endpoint.server.stop(0);
+                endpoint.executor.shutdown();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Register the metrics of a component over JMX, replacing earlier metrics of a component with the same name
+     *
+     * @param componentMetrics the metrics of the component
+     */
+    public static void registerMBean(SchedulingMetrics componentMetrics) {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MetricsEndpoint.class.getPackage().getName() + ":type=SchedulingMetrics,"
+                                             + "component=" + ObjectName.quote(componentMetrics.getComponentName()));
+            synchronized (MetricsEndpoint.class) {
+                if (mBeanServer.isRegistered(name)) {
+                    mBeanServer.unregisterMBean(name);
+                }
+                mBeanServer.registerMBean(componentMetrics, name);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to register metrics of {} over JMX", componentMetrics.getComponentName(), e);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder text = new StringBuilder();
+            SchedulingMetrics.writePrometheus(new ArrayList<>(metrics), text);
+            byte[] body = text.toString().getBytes(Charset.forName("UTF-8"));
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Get the port the endpoint serves on
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
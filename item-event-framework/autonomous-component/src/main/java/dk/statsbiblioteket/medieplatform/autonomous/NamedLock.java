@@ -0,0 +1,31 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+/**
+ * A lock provided by a {@link LockProvider}. The lock is not reentrant.
+ */
+public interface NamedLock {
+
+    /**
+     * Attempt to acquire the lock
+     *
+     * @param timeout the max number of milliseconds to wait for the lock, if it is held by someone else
+     *
+     * @return true if the lock was acquired, false if the timeout was exceeded
+     * @throws LockingException if the lock server failed
+     */
+    boolean acquire(long timeout) throws LockingException;
+
+    /**
+     * Release the lock. If the lock is not held, nothing happens.
+     *
+     * @throws LockingException if the lock server failed
+     */
+    void release() throws LockingException;
+
+    /**
+     * Check if this lock is held
+     *
+     * @return true if this lock have been acquired, and not released
+     */
+    boolean isHeld();
+}
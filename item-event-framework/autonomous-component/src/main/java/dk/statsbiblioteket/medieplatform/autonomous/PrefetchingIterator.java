@@ -0,0 +1,171 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Iterator reading ahead of the consumer on a background thread, into a bounded queue. This lets the discovery of
+ * triggered items, ie. paging through SBOI and fetching details from DOMS, run concurrently with the locking of and
+ * work on the items already found. The background thread blocks when the queue is full, so it never reads more than
+ * the capacity ahead of the consumer, and stops when the iterator is closed.
+ * <p>
+ * Runtime exceptions thrown by the wrapped iterator are rethrown to the consumer, in order, when it reaches them.
+ * <p>
+ * As the wrapped iterator is read in the background, the time spent reading it is not seen by the consumer. The
+ * background thread can record it in a histogram, when it stops.
+ */
+public class PrefetchingIterator<T> implements Iterator<T>, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(PrefetchingIterator.class);
+
+    /**
+     * Marks the end of the wrapped iterator in the queue
+     */
+    private static final Object END = new Object();
+
+    private final Iterator<T> delegate;
+    private final BlockingQueue<Object> queue;
+    private final Thread producer;
+    private final SchedulingMetrics.Histogram fetchTime;
+    private final long spentMillis;
+    private Object next = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new prefetching iterator, and start reading ahead
+     *
+     * @param delegate the iterator to read from
+     * @param capacity the max number of elements to read ahead of the consumer
+     * @param name     the name of the background thread
+     */
+    public PrefetchingIterator(Iterator<T> delegate, int capacity, String name) {
+        this(delegate, capacity, name, null, 0);
+    }
+
+    /**
+     * Create a new prefetching iterator, and start reading ahead. When the background thread stops, the time spent
+     * reading the wrapped iterator is recorded, not counting the time waiting for the consumer.
+     *
+     * @param delegate    the iterator to read from
+     * @param capacity    the max number of elements to read ahead of the consumer
+     * @param name        the name of the background thread
+     * @param fetchTime   the histogram to record the time spent reading the wrapped iterator in, or null
+     * @param spentMillis the number of milliseconds already spent creating the wrapped iterator, to include in the
+     *                    recorded time
+     */
+    public PrefetchingIterator(Iterator<T> delegate, int capacity, String name, SchedulingMetrics.Histogram fetchTime,
+                               long spentMillis) {
+        this.delegate = delegate;
+        this.fetchTime = fetchTime;
+        this.spentMillis = spentMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, name);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce() {
+        long fetchMillis = spentMillis;
+        try {
+            while (!closed) {
+                long fetchStart = System.currentTimeMillis();
+                if (!delegate.hasNext()) {
+                    fetchMillis += System.currentTimeMillis() - fetchStart;
+                    break;
+                }
+                T element = delegate.next();
+                fetchMillis += System.currentTimeMillis() - fetchStart;
+                queue.put(element);
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            log.debug("Stopped reading ahead, as the iterator was closed");
+        } catch (RuntimeException e) {
+            try {
+                queue.put(new Failure(e));
+            } catch (InterruptedException e1) {
+                log.debug("Stopped reading ahead, as the iterator was closed");
+            }
+        } finally {
+            if (fetchTime != null) {
+                fetchTime.observe(fetchMillis);
+            }
+            if (delegate instanceof Closeable) {
+                try {
+                    ((Closeable) delegate).close();
+                } catch (IOException e) {
+                    log.warn("Failed to close the iterator", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            if (closed) {
+                return false;
+            }
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next element", e);
+            }
+        }
+        if (next instanceof Failure) {
+            RuntimeException cause = ((Failure) next).cause;
+            next = END;
+            throw cause;
+        }
+        return next != END;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = (T) next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop reading ahead. The wrapped iterator, if closeable, is closed by the background thread when it stops.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        producer.interrupt();
+    }
+
+    /**
+     * A failure of the wrapped iterator, passed to the consumer through the queue
+     */
+    private static class Failure {
+        private final RuntimeException cause;
+
+        private Failure(RuntimeException cause) {
+            this.cause = cause;
+        }
+    }
+}
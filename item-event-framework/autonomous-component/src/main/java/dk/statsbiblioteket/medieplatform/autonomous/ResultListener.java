@@ -0,0 +1,17 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+/**
+ * Listener receiving the outcome of the work on each item, as soon as the worker have completed and written the
+ * result. The full result is written as an event on the item, so the listener only receives a summary.
+ */
+public interface ResultListener<T extends Item> {
+
+    /**
+     * Called when the work on an item have completed. This is called on the thread invoking
+     * {@link AutonomousComponent#call()}, so the listener should return quickly.
+     *
+     * @param item    the item worked on
+     * @param summary the summary of the result
+     */
+    void resultWritten(T item, ResultSummary summary);
+}
@@ -0,0 +1,44 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import java.util.Date;
+
+/**
+ * Compact summary of the result of the work on an item. Unlike the result collector, the summary does not hold the
+ * failures, so it can be kept for many items.
+ */
+public class ResultSummary {
+    private final boolean success;
+    private final int failureCount;
+    private final Date timestamp;
+
+    /**
+     * Summarise a result
+     *
+     * @param resultCollector the result of the work on an item
+     */
+    public ResultSummary(ResultCollector resultCollector) {
+        this.success = resultCollector.isSuccess();
+        this.failureCount = resultCollector.getFailureCount();
+        this.timestamp = resultCollector.getTimestamp();
+    }
+
+    /** Returns true if the work on the item was successful */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /** Returns the number of failures found by the work on the item */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /** Returns the time the work on the item started */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return (success ? "success" : "failure") + ", " + failureCount + " failures";
+    }
+}
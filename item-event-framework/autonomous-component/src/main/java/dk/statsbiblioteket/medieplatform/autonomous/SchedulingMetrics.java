@@ -0,0 +1,292 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the scheduling of work in an autonomous component, telling where a poll spends its time. The metrics are
+ * counters and histograms of durations, and are available over JMX, as this is a {@link DynamicMBean}, and in the
+ * Prometheus text format, see {@link #writePrometheus(java.util.Collection, StringBuilder)}.
+ * <p>
+ * For each histogram, the JMX attributes are the number of observations, the total time and the max time in
+ * milliseconds. In the Prometheus format, the histograms are in seconds, with cumulative buckets.
+ */
+public class SchedulingMetrics implements DynamicMBean {
+
+    /**
+     * The upper bounds of the histogram buckets, in milliseconds
+     */
+    static final long[] BUCKETS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000,
+                                   900000, 3600000};
+
+    private static final String PREFIX = "autonomous_";
+
+    private final String componentName;
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    /** The number of polls */
+    public final Counter polls = counter("polls", "Number of polls for work");
+    /** The number of triggered items considered */
+    public final Counter candidates = counter("candidates", "Number of triggered items considered for work");
+    /** The number of items claimed, ie. locked and found still triggered */
+    public final Counter claimed = counter("claimed", "Number of items claimed for work");
+    /** The number of items skipped, as they were locked by others */
+    public final Counter lockedElsewhere = counter("locked_elsewhere", "Number of items skipped as locked by others");
+    /** The time waiting for the SBOI lock */
+    public final Histogram sboiLockWait = histogram("sboi_lock_wait", "Time waiting for the SBOI lock");
+    /** The time querying the event trigger for triggered items, and reading them, in each poll */
+    public final Histogram triggerQuery = histogram("trigger_query", "Time reading the triggered items of a poll");
+    /** The time checking that a locked item is still triggered */
+    public final Histogram triggerRecheck = histogram("trigger_recheck",
+                                                      "Time checking that a locked item is still triggered");
+    /** The time acquiring the lock of an item */
+    public final Histogram itemLock = histogram("item_lock", "Time acquiring the lock of an item");
+    /** The time from an item is claimed until the worker starts */
+    public final Histogram workerQueueWait = histogram("worker_queue_wait",
+                                                       "Time from an item is claimed until the work starts");
+    /** The time doing the work on an item */
+    public final Histogram workerRun = histogram("worker_run", "Time doing the work on an item");
+    /** The time preserving the result of the work on an item */
+    public final Histogram preserve = histogram("preserve", "Time preserving the result of the work on an item");
+
+    /**
+     * Create new metrics
+     *
+     * @param componentName the name of the component, used as a label in the Prometheus format
+     */
+    public SchedulingMetrics(String componentName) {
+        this.componentName = componentName;
+    }
+
+    private Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        counters.put(name, counter);
+        return counter;
+    }
+
+    private Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    public String getComponentName() {
+        return componentName;
+    }
+
+    /**
+     * Write the metrics of several components in the Prometheus text format, version 0.0.4
+     *
+     * @param metrics the metrics of the components
+     * @param out     the output
+     */
+    public static void writePrometheus(Collection<SchedulingMetrics> metrics, StringBuilder out) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        SchedulingMetrics first = metrics.iterator().next();
+        for (String name : first.counters.keySet()) {
+            String family = PREFIX + name + "_total";
+            out.append("# HELP ").append(family).append(" ").append(first.counters.get(name).help).append("\n");
+            out.append("# TYPE ").append(family).append(" counter\n");
+            for (SchedulingMetrics metric : metrics) {
+                out.append(family).append(metric.labels(null)).append(" ")
+                   .append(metric.counters.get(name).get()).append("\n");
+            }
+        }
+        for (String name : first.histograms.keySet()) {
+            String family = PREFIX + name + "_seconds";
+            out.append("# HELP ").append(family).append(" ").append(first.histograms.get(name).help).append("\n");
+            out.append("# TYPE ").append(family).append(" histogram\n");
+            for (SchedulingMetrics metric : metrics) {
+                Histogram histogram = metric.histograms.get(name);
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += histogram.buckets.get(i);
+                    out.append(family).append("_bucket").append(metric.labels(seconds(BUCKETS[i]))).append(" ")
+                       .append(cumulative).append("\n");
+                }
+                out.append(family).append("_bucket").append(metric.labels("+Inf")).append(" ")
+                   .append(histogram.getCount()).append("\n");
+                out.append(family).append("_sum").append(metric.labels(null)).append(" ")
+                   .append(seconds(histogram.getTotalMillis())).append("\n");
+                out.append(family).append("_count").append(metric.labels(null)).append(" ")
+                   .append(histogram.getCount()).append("\n");
+            }
+        }
+    }
+
+    private String labels(String le) {
+        StringBuilder labels = new StringBuilder("{component=\"");
+        labels.append(componentName.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+        if (le != null) {
+            labels.append(",le=\"").append(le).append("\"");
+        }
+        return labels.append("}").toString();
+    }
+
+    private static String seconds(long millis) {
+        return BigDecimal.valueOf(millis, 3).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        for (Histogram histogram : histograms.values()) {
+            if (attribute.equals(histogram.name + "_count")) {
+                return histogram.getCount();
+            }
+            if (attribute.equals(histogram.name + "_total_ms")) {
+                return histogram.getTotalMillis();
+            }
+            if (attribute.equals(histogram.name + "_max_ms")) {
+                return histogram.getMaxMillis();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                //Unknown attributes are left out, as specified by DynamicMBean
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("No operations on metrics");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[counters.size() + histograms.size() * 3];
+        int i = 0;
+        for (Counter counter : counters.values()) {
+            attributes[i++] = attributeInfo(counter.name, counter.help);
+        }
+        for (Histogram histogram : histograms.values()) {
+            attributes[i++] = attributeInfo(histogram.name + "_count", histogram.help + ", number of observations");
+            attributes[i++] = attributeInfo(histogram.name + "_total_ms", histogram.help + ", total milliseconds");
+            attributes[i++] = attributeInfo(histogram.name + "_max_ms", histogram.help + ", max milliseconds");
+        }
+        return new MBeanInfo(getClass().getName(), "Scheduling metrics of " + componentName, attributes, null,
+                             new MBeanOperationInfo[0], null);
+    }
+
+    private static MBeanAttributeInfo attributeInfo(String name, String description) {
+        return new MBeanAttributeInfo(name, Long.class.getName(), description, true, false, false);
+    }
+
+    /**
+     * A counter, which can only be incremented
+     */
+    public static class Counter {
+        private final String name;
+        private final String help;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * A histogram of durations
+     */
+    public static class Histogram {
+        private final String name;
+        private final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Record a duration
+         *
+         * @param millis the duration in milliseconds
+         */
+        public void observe(long millis) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (millis <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            long previous;
+            while ((previous = max.get()) < millis && !max.compareAndSet(previous, millis)) {
+                //Someone else updated the max, so try again
+            }
+        }
+
+        /**
+         * Record the duration since the given start time
+         *
+         * @param start the start time, as given by {@link System#currentTimeMillis()}
+         */
+        public void observeSince(long start) {
+            observe(System.currentTimeMillis() - start);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalMillis() {
+            return total.get();
+        }
+
+        public long getMaxMillis() {
+            return max.get();
+        }
+    }
+}
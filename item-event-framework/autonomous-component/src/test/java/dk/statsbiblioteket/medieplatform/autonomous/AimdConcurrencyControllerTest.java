@@ -0,0 +1,112 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AimdConcurrencyControllerTest {
+
+    /**
+     * The limit should grow by one for each window of completed workers, up to the maximum
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        TestingController controller = new TestingController(1, 3);
+        Assert.assertEquals(controller.getLimit(), 1);
+        controller.complete(1, 100);
+        Assert.assertEquals(controller.getLimit(), 2);
+        controller.complete(1, 100);
+        Assert.assertEquals(controller.getLimit(), 2, "Increased before the window was complete");
+        controller.complete(1, 100);
+        Assert.assertEquals(controller.getLimit(), 3);
+        controller.complete(3, 100);
+        Assert.assertEquals(controller.getLimit(), 3, "Increased beyond the maximum");
+    }
+
+    /**
+     * A backend failure should halve the limit, but only once per window, and never below the minimum
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMultiplicativeDecreaseOnFailure() throws Exception {
+        TestingController controller = new TestingController(2, 10);
+        for (int limit = 2; limit < 8; limit++) {
+            controller.complete(limit, 100);
+        }
+        Assert.assertEquals(controller.getLimit(), 8);
+        controller.backendCallFailed();
+        Assert.assertEquals(controller.getLimit(), 4);
+        controller.backendCallFailed();
+        Assert.assertEquals(controller.getLimit(), 4, "Decreased twice in the same window");
+        controller.complete(4, 100);
+        controller.backendCallFailed();
+        controller.complete(2, 100);
+        controller.backendCallFailed();
+        Assert.assertEquals(controller.getLimit(), 2, "Decreased below the minimum");
+    }
+
+    /**
+     * When the backend latency grows beyond the tolerance, the limit should be decreased at the end of the window
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDecreaseOnLatency() throws Exception {
+        TestingController controller = new TestingController(1, 10);
+        controller.backendCallSucceeded(10);
+        controller.complete(1, 100);
+        controller.complete(2, 100);
+        Assert.assertEquals(controller.getLimit(), 3);
+        for (int i = 0; i < 10; i++) {
+            controller.backendCallSucceeded(100);
+        }
+        controller.complete(3, 100);
+        Assert.assertEquals(controller.getLimit(), 1);
+    }
+
+    /**
+     * When the throughput drops, the limit should be kept
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHoldOnThroughputDrop() throws Exception {
+        TestingController controller = new TestingController(1, 10);
+        controller.complete(1, 100);
+        controller.complete(2, 100);
+        Assert.assertEquals(controller.getLimit(), 3);
+        controller.complete(3, 1000);
+        Assert.assertEquals(controller.getLimit(), 3);
+    }
+
+    /**
+     * Controller with a clock advanced by the test
+     */
+    private static class TestingController extends AimdConcurrencyController {
+        private long now = 0;
+
+        private TestingController(int minimum, int maximum) {
+            super(minimum, maximum);
+        }
+
+        /**
+         * Complete a number of workers, each taking the given time
+         *
+         * @param workers  the number of workers
+         * @param duration the milliseconds each worker takes
+         */
+        private void complete(int workers, long duration) {
+            for (int i = 0; i < workers; i++) {
+                now += duration;
+                workerCompleted();
+            }
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+}
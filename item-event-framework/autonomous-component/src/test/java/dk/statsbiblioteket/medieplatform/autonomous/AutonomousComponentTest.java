@@ -2,6 +2,7 @@ package dk.statsbiblioteket.medieplatform.autonomous;
 
 import com.netflix.curator.framework.CuratorFramework;
 import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 import com.netflix.curator.retry.ExponentialBackoffRetry;
 import com.netflix.curator.test.TestingServer;
 import org.testng.Assert;
@@ -9,10 +10,17 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class AutonomousComponentTest {
     private static final String BATCHID = "40005";
@@ -96,4 +104,543 @@ public class AutonomousComponentTest {
         Assert.assertTrue(testEventFound,"Test event not found after test");
 
     }
+
+    /**
+     * With a single worker slot, and more items than slots, the work queue should be refilled as workers complete, so
+     * all the items are worked on in a single invocation.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWorkQueueIsRefilled() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007", "40008")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        component.setItems(items);
+
+        CallResult<Item> result = autonoumous.call();
+
+        Assert.assertEquals(result.getSuccessCount(), 3, "Not all items were worked on");
+        for (Item item : items) {
+            Assert.assertEquals(countEvents(component.getItem(item.getFullID()), "Data_Archived"), 1,
+                                "Item " + item.getFullID() + " was not worked on exactly once");
+        }
+    }
+
+    /**
+     * The result listener should receive a summary of each item worked on, and the call result should count them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testResultListener() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        component.setItems(items);
+        final List<String> notified = new ArrayList<>();
+        autonoumous.setResultListener(new ResultListener<Item>() {
+            @Override
+            public void resultWritten(Item item, ResultSummary summary) {
+                Assert.assertTrue(summary.isSuccess());
+                notified.add(item.getFullID());
+            }
+        });
+
+        CallResult<Item> result = autonoumous.call();
+
+        Assert.assertEquals(notified.size(), 2, "Listener not notified of all items");
+        Assert.assertTrue(notified.containsAll(Arrays.asList("40006", "40007")));
+        Assert.assertEquals(result.getSuccessCount(), 2);
+        Assert.assertEquals(result.getFailureCount(), 0);
+        Assert.assertEquals(result.containsFailures(), 0);
+    }
+
+    /**
+     * The SBOI lock should only be held while finding and locking items, so another instance of the component can
+     * lock the SBOI while this instance works.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSBOILockReleasedWhileWorking() throws Exception {
+        SBOILockCheckingComponent lockCheckingComponent = new SBOILockCheckingComponent(lockClient);
+        lockCheckingComponent.setItems(component.getItems());
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(lockCheckingComponent,
+                lockClient, 1, 1, Arrays.asList("Data_Received"), null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 100,
+                lockCheckingComponent.getEventTrigger(), lockCheckingComponent.getEventStorer());
+
+        autonomous.call();
+
+        Assert.assertTrue(lockCheckingComponent.sboiLockable, "SBOI was locked while working");
+    }
+
+    /**
+     * A completed worker should be collected, and the lock of its item released, as soon as it completes, while the
+     * other workers are still working, rather than when the futures are next polled
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCompletedWorkerCollectedImmediately() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        InProcessLockProvider lockProvider = new InProcessLockProvider();
+        LockWatchingComponent watchingComponent = new LockWatchingComponent(lockProvider, "40006");
+        watchingComponent.setItems(items);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(watchingComponent,
+                lockProvider, 2, 2, null, null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 100,
+                watchingComponent.getEventTrigger(), watchingComponent.getEventStorer());
+
+        autonomous.call();
+
+        Assert.assertTrue(watchingComponent.releasedAfter >= 0,
+                          "Lock of the completed item not released while working");
+        Assert.assertTrue(watchingComponent.releasedAfter < 500,
+                          "Lock of the completed item released after " + watchingComponent.releasedAfter + " ms");
+    }
+
+    /**
+     * When a worker exceeds its deadline, only that worker should be cancelled. The other workers should be allowed to
+     * complete.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOnlyTimedOutWorkerIsCancelled() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        SlowComponent slowComponent = new SlowComponent("40006");
+        slowComponent.setItems(items);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(slowComponent,
+                lockClient, 2, 2, Arrays.asList("Data_Received"), null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 500, 100,
+                slowComponent.getEventTrigger(), slowComponent.getEventStorer());
+        RecordingResultListener results = new RecordingResultListener();
+        autonomous.setResultListener(results);
+
+        autonomous.call();
+
+        Assert.assertFalse(results.outcomes.get("40006"), "Slow item was not cancelled");
+        Assert.assertTrue(results.outcomes.get("40007"), "Fast item was cancelled");
+    }
+
+    /**
+     * Items locked by someone else should be skipped without waiting, when the item lock timeout is 0.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLockedItemIsSkipped() throws Exception {
+        Item lockedItem = component.getItem(BATCHID);
+        Item freeItem = new Item("40006");
+        freeItem.setEventList(new ArrayList<Event>());
+        component.getItems().add(freeItem);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(component,
+                lockClient, 1, 2, Arrays.asList("Data_Received"), null, null, null,
+                DEFAULT_TIMEOUT, 0, DEFAULT_TIMEOUT, 100,
+                component.getEventTrigger(), component.getEventStorer());
+        RecordingResultListener results = new RecordingResultListener();
+        autonomous.setResultListener(results);
+        InterProcessSemaphoreMutex itemLock = new InterProcessSemaphoreMutex(lockClient,
+                "/" + component.getComponentName() + "/" + lockedItem.getFullID());
+        Assert.assertTrue(itemLock.acquire(1000, TimeUnit.MILLISECONDS));
+        try {
+            long start = System.currentTimeMillis();
+            autonomous.call();
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000, "Waited for the locked item");
+            Assert.assertFalse(results.outcomes.containsKey(lockedItem.getFullID()), "Worked on the locked item");
+            Assert.assertTrue(results.outcomes.containsKey(freeItem.getFullID()), "Did not work on the free item");
+        } finally {
+            itemLock.release();
+        }
+    }
+
+    /**
+     * Run the component as a daemon, and check that it keeps polling with the same lock client and component, so the
+     * item is worked on in more than one poll.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDaemonPollsRepeatedly() throws Exception {
+        AutonomousComponentDaemon<Item> daemon = new AutonomousComponentDaemon<>(autonoumous, 10);
+        Thread daemonThread = new Thread(daemon);
+        daemonThread.start();
+        try {
+            long start = System.currentTimeMillis();
+            while (countEvents(component.getItem(BATCHID), "Data_Archived") < 2
+                   && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(10);
+            }
+        } finally {
+            daemon.stop();
+        }
+        Assert.assertTrue(daemon.awaitTermination(10000), "Daemon did not stop");
+        Assert.assertTrue(countEvents(component.getItem(BATCHID), "Data_Archived") >= 2,
+                          "Daemon did not poll more than once");
+    }
+
+    /**
+     * When the connection to the lock server is lost and restored while working, the items should be locked again
+     * before the results are preserved. If another instance have locked an item in the meantime, the result should be
+     * kept in the outbox rather than preserved.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testItemsLockedAgainAfterLostConnection() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        LosableLockProvider lockProvider = new LosableLockProvider();
+        ConnectionLosingComponent losingComponent = new ConnectionLosingComponent(lockProvider, true, "40006");
+        losingComponent.setItems(items);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(losingComponent,
+                lockProvider, 1, 1, null, null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 100,
+                losingComponent.getEventTrigger(), losingComponent.getEventStorer());
+        File outboxDirectory = Files.createTempDirectory("outbox").toFile();
+        outboxDirectory.deleteOnExit();
+        EventOutbox<Item> outbox = new EventOutbox<>(outboxDirectory, new DomsItemFactory());
+        autonomous.setOutbox(outbox);
+
+        autonomous.call();
+
+        Assert.assertEquals(countEvents(losingComponent.getItem("40006"), "Data_Archived"), 0,
+                            "Result preserved for item locked by someone else");
+        Assert.assertTrue(outbox.isPending(items.get(0), "Data_Archived"), "Result not kept in the outbox");
+        Assert.assertEquals(countEvents(losingComponent.getItem("40007"), "Data_Archived"), 1,
+                            "Result not preserved for item locked again");
+    }
+
+    /**
+     * When the connection to the lock server is lost and restored while working, but the session survives, the items
+     * are still locked, so the results should be preserved, and the locks released afterwards
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLocksKeptWhenSessionSurvivesLostConnection() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        LosableLockProvider lockProvider = new LosableLockProvider();
+        ConnectionLosingComponent losingComponent = new ConnectionLosingComponent(lockProvider, false, null);
+        losingComponent.setItems(items);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(losingComponent,
+                lockProvider, 1, 1, null, null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 100,
+                losingComponent.getEventTrigger(), losingComponent.getEventStorer());
+        File outboxDirectory = Files.createTempDirectory("outbox").toFile();
+        outboxDirectory.deleteOnExit();
+        EventOutbox<Item> outbox = new EventOutbox<>(outboxDirectory, new DomsItemFactory());
+        autonomous.setOutbox(outbox);
+
+        autonomous.call();
+
+        for (Item item : items) {
+            Assert.assertEquals(countEvents(losingComponent.getItem(item.getFullID()), "Data_Archived"), 1,
+                                "Result not preserved for item still locked");
+            Assert.assertFalse(outbox.isPending(item, "Data_Archived"), "Result kept in the outbox");
+            Assert.assertTrue(lockProvider.getLock("/" + losingComponent.getComponentName() + "/" + item.getFullID())
+                                          .acquire(0), "Lock not released");
+        }
+    }
+
+    /**
+     * Workers stopped while working, as when the process is shut down, should have their work cancelled, and the
+     * result of the cancelled work should be discarded rather than preserved or kept in the outbox. No further items
+     * should be worked on.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStoppedWorkersAreCancelled() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("40006", "40007")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        final BlockingComponent blockingComponent = new BlockingComponent();
+        blockingComponent.setItems(items);
+        final AutonomousComponent<Item> autonomous = new AutonomousComponent<>(blockingComponent,
+                new InProcessLockProvider(), 1, 1, null, null, null, null,
+                DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT, 100,
+                blockingComponent.getEventTrigger(), blockingComponent.getEventStorer());
+        File outboxDirectory = Files.createTempDirectory("outbox").toFile();
+        outboxDirectory.deleteOnExit();
+        EventOutbox<Item> outbox = new EventOutbox<>(outboxDirectory, new DomsItemFactory());
+        autonomous.setOutbox(outbox);
+        Thread poll = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AutonomousComponentUtils.call(autonomous);
+            }
+        });
+        poll.start();
+        Assert.assertTrue(blockingComponent.started.await(5, TimeUnit.SECONDS), "Work not started");
+
+        autonomous.stopWorkers();
+        poll.join(5000);
+
+        Assert.assertFalse(poll.isAlive(), "Poll did not complete");
+        Assert.assertTrue(blockingComponent.interrupted, "Work not cancelled");
+        Assert.assertEquals(countEvents(blockingComponent.getItem("40006"), "Data_Archived"), 0,
+                            "Result preserved after the workers were stopped");
+        Assert.assertFalse(outbox.isPending(items.get(0), "Data_Archived"), "Result of cancelled work kept");
+        Assert.assertEquals(countEvents(blockingComponent.getItem("40007"), "Data_Archived"), 0,
+                            "Worked on an item after the workers were stopped");
+    }
+
+    private int countEvents(Item item, String eventID) {
+        int count = 0;
+        for (Event event : new ArrayList<>(item.getEventList())) {
+            if (event.getEventID().equals(eventID)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Result listener recording the outcome of each item worked on
+     */
+    private static class RecordingResultListener implements ResultListener<Item> {
+        private final Map<String, Boolean> outcomes = new HashMap<>();
+
+        @Override
+        public void resultWritten(Item item, ResultSummary summary) {
+            outcomes.put(item.getFullID(), summary.isSuccess());
+        }
+    }
+
+    /**
+     * Component that checks that the SBOI can be locked while it works
+     */
+    private static class SBOILockCheckingComponent extends TestingComponent {
+        private final CuratorFramework lockClient;
+        private boolean sboiLockable = false;
+
+        private SBOILockCheckingComponent(CuratorFramework lockClient) {
+            super(null);
+            this.lockClient = lockClient;
+        }
+
+        @Override
+        public void doWorkOnItem(Item batch, ResultCollector resultCollector) throws Exception {
+            InterProcessSemaphoreMutex sboiLock = new InterProcessSemaphoreMutex(lockClient,
+                                                                                 "/SBOI/" + getComponentName());
+            sboiLockable = sboiLock.acquire(1000, TimeUnit.MILLISECONDS);
+            if (sboiLockable) {
+                sboiLock.release();
+            }
+        }
+    }
+
+    /**
+     * Component that keeps working on the slow item until cancelled
+     */
+    private static class SlowComponent extends TestingComponent {
+        private final String slowItemID;
+
+        private SlowComponent(String slowItemID) {
+            super(null);
+            this.slowItemID = slowItemID;
+        }
+
+        @Override
+        public void doWorkOnItem(Item item, ResultCollector resultCollector,
+                                 CancellationToken cancellationToken) throws Exception {
+            while (item.getFullID().equals(slowItemID)) {
+                cancellationToken.throwIfCancelled();
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Component that loses the connection to the lock server while working, and restores it again. If the session
+     * expires while the connection is lost, the stolen item is locked by someone else.
+     */
+    private static class ConnectionLosingComponent extends TestingComponent {
+        private final LosableLockProvider lockProvider;
+        private final boolean expire;
+        private final String stolenItemID;
+
+        private ConnectionLosingComponent(LosableLockProvider lockProvider, boolean expire, String stolenItemID) {
+            super(null);
+            this.lockProvider = lockProvider;
+            this.expire = expire;
+            this.stolenItemID = stolenItemID;
+        }
+
+        @Override
+        public void doWorkOnItem(Item item, ResultCollector resultCollector) throws Exception {
+            lockProvider.loseConnection(expire);
+            if (item.getFullID().equals(stolenItemID)) {
+                Assert.assertTrue(lockProvider.getLock("/" + getComponentName() + "/" + item.getFullID()).acquire(0));
+            }
+            lockProvider.restoreConnection();
+        }
+    }
+
+    /**
+     * Lock provider which can lose the connection, and all its locks at once, as when the session with the lock server
+     * expires
+     */
+    private static class LosableLockProvider implements LockProvider {
+        private final Map<String, Object> holders = new HashMap<>();
+        private final List<ConnectionStateListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile long sessionId = 1;
+
+        @Override
+        public NamedLock getLock(final String path) {
+            return new NamedLock() {
+                @Override
+                public boolean acquire(long timeout) {
+                    synchronized (holders) {
+                        if (holders.containsKey(path)) {
+                            return false;
+                        }
+                        holders.put(path, this);
+                        return true;
+                    }
+                }
+
+                @Override
+                public void release() {
+                    synchronized (holders) {
+                        if (holders.get(path) == this) {
+                            holders.remove(path);
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isHeld() {
+                    synchronized (holders) {
+                        return holders.get(path) == this;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        @Override
+        public void addConnectionStateListener(ConnectionStateListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void loseConnection(boolean expire) {
+            if (expire) {
+                synchronized (holders) {
+                    holders.clear();
+                    sessionId++;
+                }
+            }
+            for (ConnectionStateListener listener : listeners) {
+                listener.stateChanged(ConnectionState.LOST);
+            }
+        }
+
+        private void restoreConnection() {
+            for (ConnectionStateListener listener : listeners) {
+                listener.stateChanged(ConnectionState.RECONNECTED);
+            }
+        }
+    }
+
+    /**
+     * Component that completes the work on the watched item at once, and while working on the other items, measures
+     * how long it takes for the lock of the watched item to be released
+     */
+    private static class LockWatchingComponent extends TestingComponent {
+        private final LockProvider lockProvider;
+        private final String watchedItemID;
+        private volatile long releasedAfter = -1;
+
+        private LockWatchingComponent(LockProvider lockProvider, String watchedItemID) {
+            super(null);
+            this.lockProvider = lockProvider;
+            this.watchedItemID = watchedItemID;
+        }
+
+        @Override
+        public void doWorkOnItem(Item item, ResultCollector resultCollector) throws Exception {
+            if (item.getFullID().equals(watchedItemID)) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            NamedLock watchedLock = lockProvider.getLock("/" + getComponentName() + "/" + watchedItemID);
+            while (System.currentTimeMillis() - start < 2000) {
+                if (watchedLock.acquire(0)) {
+                    releasedAfter = System.currentTimeMillis() - start;
+                    watchedLock.release();
+                    return;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Component that never completes the work on an item, unless interrupted
+     */
+    private static class BlockingComponent extends TestingComponent {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean interrupted = false;
+
+        private BlockingComponent() {
+            super(null);
+        }
+
+        @Override
+        public void doWorkOnItem(Item item, ResultCollector resultCollector) throws Exception {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            }
+        }
+    }
 }
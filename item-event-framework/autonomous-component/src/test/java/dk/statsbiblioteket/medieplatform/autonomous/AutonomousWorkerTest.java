@@ -0,0 +1,145 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class AutonomousWorkerTest {
+    private static final String ITEMID = "40005";
+    private TestingComponent component;
+    private AutonomousWorker<Item> worker;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        component = new TestingComponent(null);
+        Item item = new Item(ITEMID);
+        item.setEventList(new ArrayList<Event>());
+        component.setItems(new ArrayList<>(Arrays.asList(item)));
+        worker = new AutonomousWorker<>(component,
+                                        new ResultCollector(component.getComponentName(),
+                                                            component.getComponentVersion()),
+                                        item,
+                                        component.getEventStorer());
+    }
+
+    /**
+     * A suspended worker should hold the result, and preserve it when resumed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testResultHeldWhileSuspended() throws Exception {
+        worker.setPause(true);
+        Thread thread = new Thread(worker);
+        thread.start();
+        thread.join(500);
+        Assert.assertTrue(thread.isAlive(), "Suspended worker did not wait");
+        Assert.assertTrue(component.getItem(ITEMID).getEventList().isEmpty(), "Result preserved while suspended");
+
+        worker.setPause(false);
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive(), "Resumed worker did not complete");
+        Assert.assertEquals(component.getItem(ITEMID).getEventList().size(), 1, "Held result not preserved");
+    }
+
+    /**
+     * A worker stopped while suspended should not preserve the result, and stay stopped
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testResultDroppedWhenStopped() throws Exception {
+        worker.setPause(true);
+        Thread thread = new Thread(worker);
+        thread.start();
+        worker.setStop(true);
+        worker.setPause(false);
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive(), "Stopped worker did not complete");
+        Assert.assertEquals(worker.getState(), AutonomousWorker.State.STOPPED);
+        Assert.assertTrue(component.getItem(ITEMID).getEventList().isEmpty(), "Result preserved after stop");
+    }
+
+    /**
+     * Work cancelled by a timeout should not preserve a result, and keep the checkpoint, so the work is resumed. The
+     * checkpoint should be cleared when the resumed work have preserved its result.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancelledWorkResumed() throws Exception {
+        File checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+        Item item = component.getItem(ITEMID);
+        TestingComponent slowComponent = new TestingComponent(null) {
+            @Override
+            public void doWorkOnItem(Item item, ResultCollector resultCollector,
+                                     CancellationToken cancellationToken) throws Exception {
+                resultCollector.getCheckpoint().markCompleted("subtree", new ResultCollector("test", "0.1"));
+                Thread.sleep(50);
+                cancellationToken.throwIfCancelled();
+            }
+        };
+        AutonomousWorker<Item> timedOut = new AutonomousWorker<>(slowComponent,
+                                                                 new ResultCollector("test", "0.1"),
+                                                                 item,
+                                                                 component.getEventStorer(),
+                                                                 10);
+        timedOut.setCheckpoint(new FileCheckpoint(checkpointDirectory, item));
+        timedOut.run();
+        Assert.assertFalse(timedOut.getResultCollector().isSuccess());
+        Assert.assertTrue(item.getEventList().isEmpty(), "Result of cancelled work preserved");
+        Assert.assertTrue(new FileCheckpoint(checkpointDirectory, item).isCompleted("subtree"),
+                          "Checkpoint of cancelled work cleared");
+
+        AutonomousWorker<Item> resumed = new AutonomousWorker<>(component,
+                                                                new ResultCollector("test", "0.1"),
+                                                                item,
+                                                                component.getEventStorer());
+        resumed.setCheckpoint(new FileCheckpoint(checkpointDirectory, item));
+        resumed.run();
+        Assert.assertEquals(item.getEventList().size(), 1, "Result of resumed work not preserved");
+        Assert.assertFalse(new FileCheckpoint(checkpointDirectory, item).isCompleted("subtree"),
+                           "Checkpoint not cleared after the result was preserved");
+        Assert.assertTrue(checkpointDirectory.delete());
+    }
+
+    /**
+     * Work cancelled without completing any subtree would never get further if resumed, so the cancellation should be
+     * preserved as a failure, and the checkpoint cleared
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancelledWorkWithoutProgressFails() throws Exception {
+        File checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+        Item item = component.getItem(ITEMID);
+        FileCheckpoint checkpoint = new FileCheckpoint(checkpointDirectory, item);
+        checkpoint.markCompleted("subtree", new ResultCollector("test", "0.1"));
+        TestingComponent stuckComponent = new TestingComponent(null) {
+            @Override
+            public void doWorkOnItem(Item item, ResultCollector resultCollector,
+                                     CancellationToken cancellationToken) throws Exception {
+                Thread.sleep(50);
+                cancellationToken.throwIfCancelled();
+            }
+        };
+        AutonomousWorker<Item> timedOut = new AutonomousWorker<>(stuckComponent,
+                                                                 new ResultCollector("test", "0.1"),
+                                                                 item,
+                                                                 component.getEventStorer(),
+                                                                 10);
+        timedOut.setCheckpoint(checkpoint);
+        timedOut.run();
+        Assert.assertFalse(timedOut.getResultCollector().isSuccess());
+        Assert.assertEquals(item.getEventList().size(), 1, "Cancellation without progress not preserved");
+        Assert.assertFalse(item.getEventList().get(0).isSuccess(), "Cancellation preserved as a success");
+        Assert.assertFalse(new FileCheckpoint(checkpointDirectory, item).isCompleted("subtree"),
+                           "Checkpoint not cleared after the cancellation was preserved");
+        Assert.assertTrue(checkpointDirectory.delete());
+    }
+}
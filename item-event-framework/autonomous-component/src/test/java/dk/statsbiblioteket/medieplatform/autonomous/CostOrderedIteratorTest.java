@@ -0,0 +1,74 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class CostOrderedIteratorTest {
+
+    /**
+     * Items should be ordered with the most expensive first, within the lookahead window, and items of the same cost
+     * should keep their order
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOrderedByCostWithinWindow() throws Exception {
+        final Map<String, Long> costs = new HashMap<>();
+        costs.put("small1", 1L);
+        costs.put("large", 200L);
+        costs.put("small2", 1L);
+        costs.put("medium", 10L);
+        costs.put("huge", 500L);
+        ItemCostEstimator<Item> estimator = new ItemCostEstimator<Item>() {
+            @Override
+            public long estimateCost(Item item) {
+                return costs.get(item.getFullID());
+            }
+        };
+        List<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("small1", "large", "small2", "medium", "huge")) {
+            items.add(new Item(id));
+        }
+
+        Iterator<Item> ordered = new CostOrderedIterator<>(items.iterator(), estimator, 3);
+
+        Assert.assertEquals(toIDs(ordered), Arrays.asList("large", "medium", "huge", "small1", "small2"));
+    }
+
+    /**
+     * Items where the estimation fails should be treated as having unknown cost, rather than failing the iteration
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailingEstimate() throws Exception {
+        ItemCostEstimator<Item> estimator = new ItemCostEstimator<Item>() {
+            @Override
+            public long estimateCost(Item item) {
+                if (item.getFullID().equals("broken")) {
+                    throw new RuntimeException("No estimate");
+                }
+                return 5;
+            }
+        };
+        Iterator<Item> ordered = new CostOrderedIterator<>(Arrays.asList(new Item("broken"), new Item("fine")).iterator(),
+                                                          estimator, 10);
+
+        Assert.assertEquals(toIDs(ordered), Arrays.asList("fine", "broken"));
+    }
+
+    private List<String> toIDs(Iterator<Item> items) {
+        List<String> result = new ArrayList<>();
+        while (items.hasNext()) {
+            result.add(items.next().getFullID());
+        }
+        return result;
+    }
+}
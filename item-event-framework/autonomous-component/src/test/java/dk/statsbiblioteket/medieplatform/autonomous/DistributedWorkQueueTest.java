@@ -0,0 +1,140 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.ExponentialBackoffRetry;
+import com.netflix.curator.test.TestingServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class DistributedWorkQueueTest {
+    private static final long DEFAULT_TIMEOUT = 3600000;
+    private TestingServer testingServer;
+    private CuratorFramework lockClient1;
+    private CuratorFramework lockClient2;
+    private DistributedWorkQueue<Item> queue1;
+    private DistributedWorkQueue<Item> queue2;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        testingServer = new TestingServer();
+        lockClient1 = createClient();
+        lockClient2 = createClient();
+        queue1 = new DistributedWorkQueue<>(lockClient1, "TestingComponent", new DomsItemFactory());
+        queue2 = new DistributedWorkQueue<>(lockClient2, "TestingComponent", new DomsItemFactory());
+        queue1.start();
+        queue2.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        lockClient1.close();
+        lockClient2.close();
+        testingServer.close();
+    }
+
+    private CuratorFramework createClient() {
+        CuratorFramework lockClient = CuratorFrameworkFactory.newClient(testingServer.getConnectString(),
+                                                                        new ExponentialBackoffRetry(1000, 3));
+        lockClient.start();
+        return lockClient;
+    }
+
+    /**
+     * Exactly one of the instances should be elected as publisher
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOnePublisher() throws Exception {
+        long start = System.currentTimeMillis();
+        while (!queue1.isPublisher() && !queue2.isPublisher() && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(queue1.isPublisher() ^ queue2.isPublisher(), "Not exactly one publisher");
+    }
+
+    /**
+     * An item leased by one instance should not be available to the others, and should be removed from the queue
+     * when the lease is released.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeaseAndRelease() throws Exception {
+        Assert.assertEquals(queue1.publish(Arrays.asList(new Item("item1"), new Item("item2")).iterator()), 2);
+        Assert.assertEquals(queue2.publish(Arrays.asList(new Item("item1")).iterator()), 0, "Item published twice");
+        Assert.assertEquals(toList(queue2.getQueuedItems()), Arrays.asList(new Item("item1"), new Item("item2")));
+
+        NamedLock lease1 = queue1.getLease(new Item("item1"));
+        Assert.assertTrue(lease1.acquire(0));
+        Assert.assertFalse(queue2.getLease(new Item("item1")).acquire(0),
+                           "Leased item taken twice");
+        Assert.assertEquals(toList(queue2.getQueuedItems()), Arrays.asList(new Item("item2")));
+
+        lease1.release();
+        Assert.assertFalse(queue2.getLease(new Item("item1")).acquire(0),
+                           "Completed item taken again");
+        Assert.assertEquals(toList(queue1.getQueuedItems()), Arrays.asList(new Item("item2")));
+    }
+
+    /**
+     * When an instance dies, its leases should expire, so another instance can take the item
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeaseExpiresWithSession() throws Exception {
+        queue1.publish(Arrays.asList(new Item("item1")).iterator());
+        Assert.assertTrue(queue1.getLease(new Item("item1")).acquire(0));
+
+        lockClient1.close();
+
+        Assert.assertTrue(queue2.getLease(new Item("item1")).acquire(10000),
+                          "Lease did not expire");
+    }
+
+    /**
+     * An autonomous component using the queue should work on the published items, and remove them from the queue
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testComponentWorksOnQueuedItems() throws Exception {
+        TestingComponent component = new TestingComponent(null);
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("item1", "item2")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        component.setItems(items);
+        queue1.publish(items.iterator());
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(component, lockClient2, 1, 1, null, null,
+                                                                         null, null, DEFAULT_TIMEOUT, 0,
+                                                                         DEFAULT_TIMEOUT, 100,
+                                                                         component.getEventTrigger(),
+                                                                         component.getEventStorer());
+        autonomous.setWorkQueue(queue2);
+
+        CallResult<Item> result = autonomous.call();
+
+        Assert.assertEquals(result.getSuccessCount(), 2);
+        Assert.assertFalse(queue1.getQueuedItems().hasNext(), "Items left in the queue");
+    }
+
+    private List<Item> toList(Iterator<Item> items) {
+        List<Item> result = new ArrayList<>();
+        while (items.hasNext()) {
+            result.add(items.next());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventOutboxTest {
+    private static final String ITEMID = "40005";
+    private TestingComponent component;
+    private EventOutbox<Item> outbox;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        component = new TestingComponent(null);
+        Item item = new Item(ITEMID);
+        item.setEventList(new ArrayList<Event>());
+        component.setItems(new ArrayList<>(Arrays.asList(item)));
+        outbox = new EventOutbox<>(createTempDir(), new DomsItemFactory());
+    }
+
+    /**
+     * A journaled event should be pending until replayed to a working event storer
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReplayWhenBackendRecovers() throws Exception {
+        outbox.add(new Item(ITEMID), "agent", new Date(), "details", "Data_Archived", true);
+        Assert.assertTrue(outbox.isPending(new Item(ITEMID), "Data_Archived"));
+        Assert.assertFalse(outbox.isPending(new Item(ITEMID), "Other_Event"));
+
+        @SuppressWarnings("unchecked")
+        EventStorer<Item> failingStorer = mock(EventStorer.class);
+        when(failingStorer.appendEventToItem(any(Item.class), anyString(), any(Date.class), anyString(), anyString(),
+                                             anyBoolean())).thenThrow(new CommunicationException("DOMS down"));
+        Assert.assertEquals(outbox.replay(failingStorer), 0);
+        Assert.assertTrue(outbox.isPending(new Item(ITEMID), "Data_Archived"), "Event lost on failed replay");
+
+        Assert.assertEquals(outbox.replay(component.getEventStorer()), 1);
+        Assert.assertFalse(outbox.isPending(new Item(ITEMID), "Data_Archived"));
+        Event stored = component.getItem(ITEMID).getEventList().get(0);
+        Assert.assertEquals(stored.getEventID(), "Data_Archived");
+        Assert.assertEquals(stored.getDetails(), "details");
+    }
+
+    /**
+     * An event failing to be stored for other reasons than a communication failure should be moved aside after the max
+     * number of attempts, so the item is no longer blocked
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailingEventMovedAside() throws Exception {
+        outbox.setMaxAttempts(2);
+        outbox.add(new Item(ITEMID), "agent", new Date(), "details", "Data_Archived", true);
+
+        @SuppressWarnings("unchecked")
+        EventStorer<Item> brokenStorer = mock(EventStorer.class);
+        when(brokenStorer.appendEventToItem(any(Item.class), anyString(), any(Date.class), anyString(), anyString(),
+                                            anyBoolean())).thenThrow(new IllegalStateException("Broken event"));
+        Assert.assertEquals(outbox.replay(brokenStorer), 0);
+        Assert.assertTrue(outbox.isPending(new Item(ITEMID), "Data_Archived"), "Event given up after one attempt");
+        Assert.assertEquals(outbox.replay(brokenStorer), 0);
+        Assert.assertFalse(outbox.isPending(new Item(ITEMID), "Data_Archived"), "Event not moved aside");
+    }
+
+    /**
+     * Replaying with a guard should only store the events of items that are locked and still wanted
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReplayGuarded() throws Exception {
+        outbox.add(new Item(ITEMID), "agent", new Date(), "details", "Data_Archived", true);
+        final InProcessLockProvider lockProvider = new InProcessLockProvider();
+        final boolean[] wanted = {true};
+        EventOutbox.ReplayGuard<Item> guard = new EventOutbox.ReplayGuard<Item>() {
+            @Override
+            public NamedLock lock(Item item) throws LockingException {
+                NamedLock lock = lockProvider.getLock(item.getFullID());
+                return lock.acquire(0) ? lock : null;
+            }
+
+            @Override
+            public boolean isStillWanted(Item item) {
+                return wanted[0];
+            }
+        };
+
+        NamedLock otherLock = lockProvider.getLock(ITEMID);
+        Assert.assertTrue(otherLock.acquire(0));
+        Assert.assertEquals(outbox.replay(component.getEventStorer(), guard), 0);
+        Assert.assertTrue(outbox.isPending(new Item(ITEMID), "Data_Archived"), "Event stored while locked by others");
+        otherLock.release();
+
+        wanted[0] = false;
+        Assert.assertEquals(outbox.replay(component.getEventStorer(), guard), 0);
+        Assert.assertFalse(outbox.isPending(new Item(ITEMID), "Data_Archived"), "Unwanted event not discarded");
+        Assert.assertTrue(component.getItem(ITEMID).getEventList().isEmpty(), "Unwanted event stored");
+        Assert.assertTrue(lockProvider.getLock(ITEMID).acquire(0), "Lock not released after replay");
+    }
+
+    /**
+     * A worker failing to store the result should keep it in the outbox
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWorkerKeepsResultWhenStoringFails() throws Exception {
+        @SuppressWarnings("unchecked")
+        EventStorer<Item> failingStorer = mock(EventStorer.class);
+        when(failingStorer.appendEventToItem(any(Item.class), anyString(), any(Date.class), anyString(), anyString(),
+                                             anyBoolean())).thenThrow(new CommunicationException("DOMS down"));
+        AutonomousWorker<Item> worker = new AutonomousWorker<>(component,
+                                                               new ResultCollector(component.getComponentName(),
+                                                                                   component.getComponentVersion()),
+                                                               new Item(ITEMID),
+                                                               failingStorer);
+        worker.setOutbox(outbox);
+        worker.run();
+
+        Assert.assertTrue(worker.getResultCollector().isSuccess(), "Journaled result reported as failed");
+        Assert.assertTrue(outbox.isPending(new Item(ITEMID), component.getEventID()));
+    }
+
+    private File createTempDir() throws IOException {
+        File temp = File.createTempFile("outbox", "");
+        temp.delete();
+        temp.mkdir();
+        temp.deleteOnExit();
+        return temp;
+    }
+}
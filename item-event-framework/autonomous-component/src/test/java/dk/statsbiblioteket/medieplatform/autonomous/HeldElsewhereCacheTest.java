@@ -0,0 +1,88 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.ExponentialBackoffRetry;
+import com.netflix.curator.test.TestingServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+public class HeldElsewhereCacheTest {
+
+    private static final String LOCK_PATH = "/test-component/B400022028241-RT1";
+
+    private TestingServer testingServer;
+    private CuratorFramework lockClient1;
+    private CuratorFramework lockClient2;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        testingServer = new TestingServer();
+        lockClient1 = createClient();
+        lockClient2 = createClient();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        lockClient1.close();
+        lockClient2.close();
+        testingServer.close();
+    }
+
+    private CuratorFramework createClient() {
+        CuratorFramework lockClient = CuratorFrameworkFactory.newClient(testingServer.getConnectString(),
+                                                                        new ExponentialBackoffRetry(1000, 3));
+        lockClient.start();
+        return lockClient;
+    }
+
+    /**
+     * An item locked elsewhere should be remembered until the lock is released
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testForgetWhenReleased() throws Exception {
+        NamedLock lock = new CuratorLockProvider(lockClient2).getLock(LOCK_PATH);
+        Assert.assertTrue(lock.acquire(1000));
+        NamedLock ownLock = new CuratorLockProvider(lockClient1).getLock(LOCK_PATH);
+        Assert.assertFalse(ownLock.acquire(0));
+
+        HeldElsewhereCache cache = new HeldElsewhereCache(lockClient1, 60000);
+        cache.add(LOCK_PATH, new Item("uuid:1"));
+        Assert.assertTrue(cache.contains(LOCK_PATH));
+        Assert.assertEquals(cache.getDomsIDs(), Collections.singleton("uuid:1"));
+
+        lock.release();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.contains(LOCK_PATH) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(cache.contains(LOCK_PATH), "Item still remembered after the lock was released");
+        Assert.assertTrue(cache.getDomsIDs().isEmpty());
+    }
+
+    /**
+     * An item which is not locked, or held for longer than the max age, should not be remembered
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNotLockedOrExpired() throws Exception {
+        HeldElsewhereCache cache = new HeldElsewhereCache(lockClient1, 50);
+        cache.add(LOCK_PATH, new Item("uuid:1"));
+        Assert.assertFalse(cache.contains(LOCK_PATH));
+
+        NamedLock lock = new CuratorLockProvider(lockClient2).getLock(LOCK_PATH);
+        Assert.assertTrue(lock.acquire(1000));
+        cache.add(LOCK_PATH, new Item("uuid:1"));
+        Assert.assertTrue(cache.contains(LOCK_PATH));
+        Thread.sleep(100);
+        Assert.assertFalse(cache.contains(LOCK_PATH));
+        lock.release();
+    }
+}
@@ -0,0 +1,55 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class InProcessLockProviderTest {
+    private static final long DEFAULT_TIMEOUT = 3600000;
+
+    /**
+     * Locks on the same path should exclude each other, and locks on different paths should not
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLocksExcludeOnSamePath() throws Exception {
+        InProcessLockProvider lockProvider = new InProcessLockProvider();
+        NamedLock lock1 = lockProvider.getLock("/item1");
+        Assert.assertTrue(lock1.acquire(0));
+        Assert.assertFalse(lockProvider.getLock("/item1").acquire(0), "Lock taken twice");
+        Assert.assertTrue(lockProvider.getLock("/item2").acquire(0), "Lock on other path not available");
+
+        lock1.release();
+        Assert.assertFalse(lock1.isHeld());
+        Assert.assertTrue(lockProvider.getLock("/item1").acquire(0), "Released lock not available");
+    }
+
+    /**
+     * An autonomous component should work without a lock server, when using the in process locks
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testComponentWorksWithoutLockServer() throws Exception {
+        TestingComponent component = new TestingComponent(null);
+        ArrayList<Item> items = new ArrayList<>();
+        for (String id : Arrays.asList("item1", "item2")) {
+            Item item = new Item(id);
+            item.setEventList(new ArrayList<Event>());
+            items.add(item);
+        }
+        component.setItems(items);
+        AutonomousComponent<Item> autonomous = new AutonomousComponent<>(component, new InProcessLockProvider(), 2, 2,
+                                                                         null, null, null, null, DEFAULT_TIMEOUT, 0,
+                                                                         DEFAULT_TIMEOUT, 100,
+                                                                         component.getEventTrigger(),
+                                                                         component.getEventStorer());
+
+        CallResult<Item> result = autonomous.call();
+
+        Assert.assertEquals(result.getSuccessCount(), 2);
+    }
+}
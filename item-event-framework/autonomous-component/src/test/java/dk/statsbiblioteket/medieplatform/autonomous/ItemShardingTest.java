@@ -0,0 +1,96 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import com.netflix.curator.framework.CuratorFramework;
+import com.netflix.curator.framework.CuratorFrameworkFactory;
+import com.netflix.curator.retry.ExponentialBackoffRetry;
+import com.netflix.curator.test.TestingServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class ItemShardingTest {
+
+    private TestingServer testingServer;
+    private CuratorFramework lockClient1;
+    private CuratorFramework lockClient2;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        testingServer = new TestingServer();
+        lockClient1 = createClient();
+        lockClient2 = createClient();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        lockClient1.close();
+        lockClient2.close();
+        testingServer.close();
+    }
+
+    private CuratorFramework createClient() {
+        CuratorFramework lockClient = CuratorFrameworkFactory.newClient(testingServer.getConnectString(),
+                                                                        new ExponentialBackoffRetry(1000, 3));
+        lockClient.start();
+        return lockClient;
+    }
+
+    /**
+     * Each item should be assigned to exactly one of the live instances, and the items of an instance should come
+     * first. When an instance leaves, the other instance should own all the items.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOwnItemsFirst() throws Exception {
+        ItemSharding sharding1 = new ItemSharding(lockClient1, "test-component", "instance1");
+        ItemSharding sharding2 = new ItemSharding(lockClient2, "test-component", "instance2");
+        sharding1.start();
+        sharding2.start();
+        sharding1.refresh();
+
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(new Item("B4000000000" + i + "-RT1"));
+        }
+        int owned1 = 0;
+        for (Item item : items) {
+            Assert.assertTrue(sharding1.isOwnItem(item) ^ sharding2.isOwnItem(item),
+                              "Item " + item.getFullID() + " not owned by exactly one instance");
+            if (sharding1.isOwnItem(item)) {
+                owned1++;
+            }
+        }
+        Assert.assertTrue(owned1 > 20 && owned1 < 80, "Uneven sharding, instance1 owns " + owned1 + " items");
+
+        List<Item> ordered = new ArrayList<>();
+        Iterator<Item> iterator = sharding1.ownItemsFirst(items.iterator(), items.size());
+        while (iterator.hasNext()) {
+            ordered.add(iterator.next());
+        }
+        Assert.assertEquals(ordered.size(), items.size());
+        for (int i = 0; i < ordered.size(); i++) {
+            Assert.assertEquals(sharding1.isOwnItem(ordered.get(i)), i < owned1);
+        }
+
+        //When no items of other instances may be held back, the order is kept
+        ordered.clear();
+        iterator = sharding1.ownItemsFirst(items.iterator(), 1);
+        while (iterator.hasNext()) {
+            ordered.add(iterator.next());
+        }
+        Assert.assertEquals(ordered, items);
+
+        sharding2.close();
+        sharding1.refresh();
+        for (Item item : items) {
+            Assert.assertTrue(sharding1.isOwnItem(item));
+        }
+        sharding1.close();
+    }
+}
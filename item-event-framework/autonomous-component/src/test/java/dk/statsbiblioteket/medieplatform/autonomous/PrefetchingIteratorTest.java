@@ -0,0 +1,132 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetchingIteratorTest {
+
+    /**
+     * The elements should be returned in order, and the iterator should not read more than the capacity ahead
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedReadAhead() throws Exception {
+        final AtomicInteger read = new AtomicInteger();
+        Iterator<Integer> source = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return read.get() < 100;
+            }
+
+            @Override
+            public Integer next() {
+                return read.getAndIncrement();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        PrefetchingIterator<Integer> iterator = new PrefetchingIterator<>(source, 5, "test-discovery");
+        Assert.assertEquals(iterator.next().intValue(), 0);
+        Thread.sleep(200);
+        Assert.assertTrue(read.get() <= 7, "Read " + read.get() + " elements ahead");
+        List<Integer> rest = new ArrayList<>();
+        while (iterator.hasNext()) {
+            rest.add(iterator.next());
+        }
+        Assert.assertEquals(rest.size(), 99);
+        Assert.assertEquals(rest.get(98).intValue(), 99);
+        iterator.close();
+    }
+
+    /**
+     * A failure of the wrapped iterator should reach the consumer after the elements read before the failure
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailurePropagated() throws Exception {
+        final Iterator<String> elements = Arrays.asList("a", "b").iterator();
+        Iterator<String> source = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (elements.hasNext()) {
+                    return elements.next();
+                }
+                throw new IllegalStateException("SBOI down");
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        PrefetchingIterator<String> iterator = new PrefetchingIterator<>(source, 10, "test-discovery");
+        Assert.assertEquals(iterator.next(), "a");
+        Assert.assertEquals(iterator.next(), "b");
+        try {
+            iterator.hasNext();
+            Assert.fail("Failure not propagated");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "SBOI down");
+        }
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * The time spent reading the wrapped iterator should be recorded when it is exhausted, even though the consumer
+     * does not wait for it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFetchTimeRecorded() throws Exception {
+        final Iterator<Integer> elements = Arrays.asList(1, 2, 3, 4, 5).iterator();
+        Iterator<Integer> source = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return elements.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return elements.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        SchedulingMetrics.Histogram fetchTime = new SchedulingMetrics("test-component").triggerQuery;
+        PrefetchingIterator<Integer> iterator = new PrefetchingIterator<>(source, 10, "test-discovery", fetchTime, 50);
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fetchTime.getCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(fetchTime.getCount(), 1);
+        Assert.assertTrue(fetchTime.getTotalMillis() >= 150, "Recorded " + fetchTime.getTotalMillis() + " ms");
+    }
+}
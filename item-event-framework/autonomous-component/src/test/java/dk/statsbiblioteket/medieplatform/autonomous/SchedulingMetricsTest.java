@@ -0,0 +1,81 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Scanner;
+
+public class SchedulingMetricsTest {
+
+    /**
+     * Observations should be counted in cumulative buckets in the Prometheus format, and summed over JMX
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHistogram() throws Exception {
+        SchedulingMetrics metrics = new SchedulingMetrics("test-component");
+        metrics.workerRun.observe(3);
+        metrics.workerRun.observe(70);
+        metrics.workerRun.observe(2000);
+        metrics.claimed.increment();
+
+        StringBuilder text = new StringBuilder();
+        SchedulingMetrics.writePrometheus(Arrays.asList(metrics), text);
+        String prometheus = text.toString();
+        Assert.assertTrue(prometheus.contains("autonomous_claimed_total{component=\"test-component\"} 1\n"));
+        Assert.assertTrue(prometheus.contains(
+                "autonomous_worker_run_seconds_bucket{component=\"test-component\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(prometheus.contains(
+                "autonomous_worker_run_seconds_bucket{component=\"test-component\",le=\"0.1\"} 2\n"));
+        Assert.assertTrue(prometheus.contains(
+                "autonomous_worker_run_seconds_bucket{component=\"test-component\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(prometheus.contains("autonomous_worker_run_seconds_sum{component=\"test-component\"} 2.073\n"));
+
+        Assert.assertEquals(metrics.getAttribute("worker_run_count"), 3l);
+        Assert.assertEquals(metrics.getAttribute("worker_run_total_ms"), 2073l);
+        Assert.assertEquals(metrics.getAttribute("worker_run_max_ms"), 2000l);
+    }
+
+    /**
+     * The metrics should be served over HTTP
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEndpoint() throws Exception {
+        SchedulingMetrics metrics = new SchedulingMetrics("served-component");
+        metrics.polls.increment();
+        MetricsEndpoint endpoint = MetricsEndpoint.getEndpoint(0);
+        endpoint.add(metrics);
+        try (InputStream in = new URL("http://localhost:" + endpoint.getPort() + "/metrics").openStream()) {
+            String body = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+            Assert.assertTrue(body.contains("autonomous_polls_total{component=\"served-component\"} 1"), body);
+        } finally {
+            MetricsEndpoint.stopServing(metrics);
+        }
+    }
+
+    /**
+     * The endpoint should be stopped when it no longer serves the metrics of any component
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testEndpointStopped() throws Exception {
+        SchedulingMetrics metrics = new SchedulingMetrics("stopped-component");
+        MetricsEndpoint endpoint = MetricsEndpoint.getEndpoint(0);
+        endpoint.add(metrics);
+        int port = endpoint.getPort();
+        MetricsEndpoint.stopServing(metrics);
+        try (InputStream in = new URL("http://localhost:" + port + "/metrics").openStream()) {
+            Assert.fail("Endpoint still serving after the metrics were removed");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -3,7 +3,7 @@ package dk.statsbiblioteket.medieplatform.autonomous;
 import java.util.Properties;
 
 /** This is an implementation that adds the code for constructing a tree iterator */
-public abstract class AbstractRunnableComponent<T extends Item> implements RunnableComponent<T> {
+public abstract class AbstractRunnableComponent<T extends Item> implements CancellableRunnableComponent<T> {
 
 
     private final Properties properties;
@@ -26,5 +26,21 @@ public abstract class AbstractRunnableComponent<T extends Item> implements Runna
         return getClass().getPackage().getImplementationVersion();
     }
 
+    /**
+     * Do the work on the item, ignoring the cancellation token. Components that can stop working on an item when
+     * cancelled should override this method.
+     *
+     * @param item              the item to work on
+     * @param resultCollector   the result collector
+     * @param cancellationToken the token telling when to stop working on the item
+     *
+     * @throws Exception if something failed
+     */
+    @Override
+    public void doWorkOnItem(T item, ResultCollector resultCollector, CancellationToken cancellationToken) throws
+                                                                                                          Exception {
+        doWorkOnItem(item, resultCollector);
+    }
+
 
 }
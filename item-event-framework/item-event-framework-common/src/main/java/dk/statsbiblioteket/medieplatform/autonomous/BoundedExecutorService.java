@@ -0,0 +1,143 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor service running each task on its own thread, with the number of tasks running at the same time limited by
+ * a semaphore rather than by the number of threads. Tasks waiting for a permit are parked threads.
+ * <p>
+ * This is intended for virtual threads, where a parked thread is cheap, so hundreds of I/O bound tasks can be in
+ * flight. Use {@link #newBoundedExecutor(int, boolean)} to get virtual threads when the JVM supports them, and a
+ * fixed thread pool otherwise.
+ */
+public class BoundedExecutorService extends AbstractExecutorService {
+
+    private static Logger log = LoggerFactory.getLogger(BoundedExecutorService.class);
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    /**
+     * Create a new bounded executor service
+     *
+     * @param delegate      the executor service to run the tasks on. It should start a thread for each task, as the
+     *                      tasks hold their thread while waiting for a permit
+     * @param maxConcurrent the max number of tasks running at the same time
+     */
+    public BoundedExecutorService(ExecutorService delegate, int maxConcurrent) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Create an executor service running at most maxConcurrent tasks at the same time. If virtual threads are
+     * requested and supported by the JVM, each task is run on a virtual thread, bounded by a semaphore. Otherwise a
+     * fixed pool of maxConcurrent platform threads is used.
+     *
+     * @param maxConcurrent  the max number of tasks running at the same time
+     * @param virtualThreads true to use virtual threads, if supported
+     *
+     * @return the executor service
+     */
+    public static ExecutorService newBoundedExecutor(int maxConcurrent, boolean virtualThreads) {
+        if (virtualThreads) {
+            ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualThreadExecutor != null) {
+                return new BoundedExecutorService(virtualThreadExecutor, maxConcurrent);
+            }
+            log.warn("Virtual threads are not supported by this JVM, so using a pool of {} platform threads",
+                     maxConcurrent);
+        }
+        return Executors.newFixedThreadPool(maxConcurrent);
+    }
+
+    /**
+     * Check if the JVM supports virtual threads
+     *
+     * @return true if virtual threads are supported
+     */
+    public static boolean isVirtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get an executor service starting a virtual thread per task. As the code is compiled for JVMs without virtual
+     * threads, the executor is found by reflection.
+     *
+     * @return the executor service, or null if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Failed to create virtual thread executor", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        delegate.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    //Shut down while waiting, so the task never started
+                    if (command instanceof Future) {
+                        ((Future<?>) command).cancel(false);
+                    }
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
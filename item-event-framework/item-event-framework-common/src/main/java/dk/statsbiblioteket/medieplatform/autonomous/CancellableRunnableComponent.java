@@ -0,0 +1,22 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+/**
+ * A component that can stop working on an item when told to. Long running components should implement this interface,
+ * so that work that have exceeded its deadline does not keep using resources. Components only implementing
+ * {@link RunnableComponent} are still cancelled, but only by interrupting the thread working on the item.
+ */
+public interface CancellableRunnableComponent<T extends Item> extends RunnableComponent<T> {
+
+    /**
+     * This is the worker method for the component, with a token telling the component when to stop working on the
+     * item. The component should check the token regularly, and stop working on the item when it have been
+     * cancelled. This method is called instead of {@link #doWorkOnItem(Item, ResultCollector)}.
+     *
+     * @param item              the item to work on
+     * @param resultCollector   the result collector
+     * @param cancellationToken the token telling when to stop working on the item
+     *
+     * @throws Exception if something failed
+     */
+    void doWorkOnItem(T item, ResultCollector resultCollector, CancellationToken cancellationToken) throws Exception;
+}
@@ -0,0 +1,80 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Token used to tell a component that the work on an item should be stopped. The work is cancelled either when
+ * {@link #cancel()} is called, or when the deadline for the work is exceeded. Cancellation is cooperative, so long
+ * running work should check the token regularly, and stop as soon as it have been cancelled.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled = false;
+    private volatile long deadline = Long.MAX_VALUE;
+
+    /**
+     * Create a new token without a deadline
+     */
+    public CancellationToken() {
+    }
+
+    /**
+     * Create a new token
+     *
+     * @param deadline the time, in milliseconds since the epoch, after which the work is cancelled
+     */
+    public CancellationToken(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the work
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the work have been cancelled, or the deadline have been exceeded
+     *
+     * @return true if the work should be stopped
+     */
+    public boolean isCancelled() {
+        return cancelled || System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * Throw an exception if the work have been cancelled
+     *
+     * @throws CancellationException if the work have been cancelled, or the deadline have been exceeded
+     */
+    public void throwIfCancelled() throws CancellationException {
+        if (isCancelled()) {
+            throw new CancellationException("The work have been cancelled");
+        }
+    }
+
+    /**
+     * Get the deadline of the work
+     *
+     * @return the time, in milliseconds since the epoch, after which the work is cancelled. Long.MAX_VALUE if there is
+     *         no deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set the deadline to be the given number of milliseconds from now
+     *
+     * @param timeout the number of milliseconds the work is allowed to take
+     */
+    void startDeadline(long timeout) {
+        long now = System.currentTimeMillis();
+        if (timeout > Long.MAX_VALUE - now) {
+            deadline = Long.MAX_VALUE;
+        } else {
+            deadline = now + timeout;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+/**
+ * Record of the completed subtrees of the work on an item, so that the work can be resumed, rather than restarted,
+ * if it is interrupted by a timeout or a restart. The failures found in each completed subtree are recorded with the
+ * subtree, so the result of the resumed work is the same as if it had not been interrupted.
+ * <p>
+ * The checkpoint of the work on an item is available from {@link ResultCollector#getCheckpoint()}.
+ */
+public interface Checkpoint {
+
+    /**
+     * Check if a subtree have been completed
+     *
+     * @param subtree the name of the subtree
+     *
+     * @return true if the subtree have been completed, and should be skipped
+     */
+    boolean isCompleted(String subtree);
+
+    /**
+     * Record that a subtree have been completed
+     *
+     * @param subtree  the name of the subtree
+     * @param failures the failures found in the subtree
+     */
+    void markCompleted(String subtree, ResultCollector failures);
+
+    /**
+     * Add the failures found in the completed subtrees to a result collector
+     *
+     * @param resultCollector the result collector
+     */
+    void restoreInto(ResultCollector resultCollector);
+
+    /**
+     * Forget all completed subtrees, when the work on the item is done
+     */
+    void clear();
+}
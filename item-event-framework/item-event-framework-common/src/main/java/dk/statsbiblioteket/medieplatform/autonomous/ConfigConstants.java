@@ -60,6 +60,47 @@ public class ConfigConstants {
     //Autonomous component framework
     /** The url for the lockserver for the autonomous system */
     public static final String AUTONOMOUS_LOCKSERVER_URL = "autonomous.lockserver.url";
+    /**
+     * The kind of locks to use, either "zookeeper" for locks in the lock server, or "inprocess" for locks only shared
+     * within the JVM, for single node deployments and benchmarks. Default zookeeper
+     */
+    public static final String AUTONOMOUS_LOCK_PROVIDER = "autonomous.lockProvider";
+    /**
+     * The number of milliseconds to wait for a lost connection to the lock server to be restored, before the workers
+     * are stopped. Workers completing in the meantime hold their results, and write them when the connection is
+     * restored. Default one minute
+     */
+    public static final String AUTONOMOUS_RECONNECT_TIMEOUT = "autonomous.reconnectTimeout";
+    /**
+     * Directory on local disk where results are journaled before they are stored as events. Results that could not be
+     * stored are stored later from the journal. Each component uses a subdirectory named after the component. Default
+     * unset, ie. results are not journaled
+     */
+    public static final String AUTONOMOUS_OUTBOX_DIR = "autonomous.outboxDirectory";
+    /**
+     * Directory where the completed subtrees of the work on each item are checkpointed, so interrupted work is resumed
+     * rather than restarted. Each component uses a subdirectory named after the component. Default unset, ie. the
+     * work is not checkpointed
+     */
+    public static final String AUTONOMOUS_CHECKPOINT_DIR = "autonomous.checkpointDirectory";
+    /**
+     * Port to serve the scheduling metrics of the components in the process on, in the Prometheus text format at
+     * /metrics. Default unset, ie. the metrics are only available over JMX
+     */
+    public static final String AUTONOMOUS_METRICS_PORT = "autonomous.metricsPort";
+    /**
+     * Boolean value determining if the triggered items should be sharded across the live instances of a component,
+     * registered in the lock server. Each instance tries to lock its own items first, and the items of the other
+     * instances only when it has no more of its own. Not used with the distributed work queue. Default false
+     */
+    public static final String AUTONOMOUS_SHARDING = "autonomous.sharding";
+    /**
+     * The max number of milliseconds to remember an item found locked by another instance of the component. Such
+     * items are left out of the following polls, before their details are fetched, until their locks are released or
+     * this time have passed, for instance 600000, ie. 10 minutes. Needs the zookeeper lock provider. 0 to try all
+     * triggered items on every poll. Default 0
+     */
+    public static final String AUTONOMOUS_HELD_ELSEWHERE_MAX_AGE = "autonomous.heldElsewhereMaxAge";
     /** The url for the sboi summa instance */
     public static final String AUTONOMOUS_SBOI_URL = "autonomous.sboi.url";
     /** Events that a batch must have experienced successfully to qualify for this component to work on it */
@@ -76,6 +117,27 @@ public class ConfigConstants {
      * The number of results to retrieve from SBOI for each search. Default 100
      */
     public static final java.lang.String SBOI_PAGESIZE = "autonomous.sboi.pageSize";
+    /**
+     * The max number of pages to fetch from SBOI in the background, while the current page is consumed. 0 to fetch
+     * each page when it is needed. Default 1
+     */
+    public static final java.lang.String SBOI_PREFETCH_PAGES = "autonomous.sboi.prefetchPages";
+    /**
+     * The max estimated number of bytes of the pages fetched from SBOI in the background. At least one page is always
+     * fetched ahead, if prefetching is enabled. Default 16777216, ie. 16 MB
+     */
+    public static final java.lang.String SBOI_PREFETCH_MAX_BYTES = "autonomous.sboi.prefetchMaxBytes";
+    /**
+     * The max number of items of a page from SBOI to read from DOMS concurrently. The items keep the order of the
+     * page. Default 4
+     */
+    public static final java.lang.String SBOI_DETAIL_THREADS = "autonomous.sboi.detailThreads";
+    /**
+     * Boolean value determining if the triggered items should be found from the events stored in SBOI, and only be
+     * read from DOMS when locked, to check that they are still triggered. If false, all triggered items are read from
+     * DOMS. Default true
+     */
+    public static final java.lang.String SBOI_PREFILTER = "autonomous.sboi.prefilter";
 
 
     /**
@@ -87,8 +149,49 @@ public class ConfigConstants {
     public static final String AUTONOMOUS_MAXTHREADS = "autonomous.maxThreads";
     /** The number of items a component should lock in it's work queue. Default 1*/
     public static final java.lang.String AUTONOMOUS_QUEUELENGTH = "autonomous.workQueueSize";
+    /**
+     * The number of milliseconds to wait when attempting to lock an item. Items locked by other instances of the
+     * component are skipped when the timeout is exceeded. Default 0, ie. locked items are skipped immediately
+     */
+    public static final String AUTONOMOUS_ITEM_LOCK_TIMEOUT = "autonomous.itemLockTimeout";
+    /**
+     * Boolean value determining if the instances of a component should share a distributed work queue in the lock
+     * server, rather than each querying SBOI and locking items. All instances of a component must agree on this value.
+     * Default false
+     */
+    public static final String AUTONOMOUS_DISTRIBUTED_WORK_QUEUE = "autonomous.distributedWorkQueue";
+    /**
+     * The number of triggered items to read ahead and order by estimated cost, if the component can estimate the cost
+     * of its items. Default 0, ie. the items are worked on in the order they are triggered
+     */
+    public static final String AUTONOMOUS_COST_LOOKAHEAD = "autonomous.costLookahead";
+    /**
+     * Boolean value determining if the number of concurrent workers should be adjusted at runtime, between
+     * autonomous.minThreads and autonomous.maxThreads, from the observed throughput, backend latency and backend
+     * errors. Default false, ie. autonomous.maxThreads workers are always run
+     */
+    public static final String AUTONOMOUS_ADAPTIVE_CONCURRENCY = "autonomous.adaptiveConcurrency";
+    /** The lowest number of concurrent workers, when adjusting the number at runtime. Default 1 */
+    public static final String AUTONOMOUS_MINTHREADS = "autonomous.minThreads";
+    /**
+     * Boolean value determining if workers, and subtrees forked by tree processing components, should run on virtual
+     * threads, with the concurrency limited by semaphores. Ignored if the JVM does not support virtual threads.
+     * Default false
+     */
+    public static final String AUTONOMOUS_VIRTUAL_THREADS = "autonomous.virtualThreads";
     /** The max time a component can work on a batch before being forcibly stopped */
     public static final String AUTONOMOUS_MAX_RUNTIME = "autonomous.maxRuntimeForWorkers";
+    /**
+     * The number of milliseconds to wait between polls, when the component is started as a daemon. Default one
+     * minute
+     */
+    public static final String AUTONOMOUS_POLL_INTERVAL = "autonomous.pollInterval";
+    /**
+     * The number of milliseconds to wait for the current poll to complete, when a daemon is shut down. When exceeded,
+     * the workers are stopped and their work cancelled, and the same time is given for them to terminate. Cancelled
+     * work is done again later. Default the poll interval, or one minute for a component host
+     */
+    public static final String AUTONOMOUS_SHUTDOWN_GRACE_PERIOD = "autonomous.shutdownGracePeriod";
     /**
      * The folder where the batch structure is stored, when the system does not have access to DOMS (because we are at
      * ninestars)
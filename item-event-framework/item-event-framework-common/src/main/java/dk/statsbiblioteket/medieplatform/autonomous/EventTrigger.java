@@ -9,11 +9,12 @@ public interface EventTrigger<T extends Item> {
 
 
     /**
-     * Perform a search for batches matching the given criteria. All results are checked against DOMS
-     * as we do not trust that the SBOI have the most current edition.
+     * Perform a search for batches matching the given criteria. As we do not trust that the SBOI have the most
+     * current edition, results of a query for specific items are checked against DOMS. The results of other queries
+     * may only be checked against SBOI, so an item must be queried specifically before working on it.
      *
-     *
-     * @param query@return An iterator over the found batches
+     * @param query the query
+     * @return An iterator over the found batches
      * @throws dk.statsbiblioteket.medieplatform.autonomous.CommunicationException if the communication failed
      */
     public Iterator<T> getTriggeredItems(Query<T> query) throws CommunicationException;
@@ -31,6 +32,7 @@ public interface EventTrigger<T extends Item> {
         private final Collection<String> oldEvents = new HashSet<>();
         private final Collection<String> types = new HashSet<>();
         private final Collection<T> items = new HashSet<>();
+        private final Collection<String> ignoredDomsIDs = new HashSet<>();
 
 
         /**
@@ -75,6 +77,15 @@ public interface EventTrigger<T extends Item> {
             return items;
         }
 
+        /**
+         * These are the DOMS IDs of items that should be left out of the result set, such as items known to be
+         * worked on elsewhere. The items can be left out before their details are fetched.
+         * @return a modifiable collection, never null
+         */
+        public Collection<String> getIgnoredDomsIDs() {
+            return ignoredDomsIDs;
+        }
+
 
     }
 }
@@ -0,0 +1,22 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+/**
+ * Interface for estimating the cost of working on an item, before the work is started. The autonomous component
+ * uses the estimates to start the most expensive items first, so a single large item does not start last and
+ * delay the end of the whole run.
+ * <p>
+ * A runnable component implementing this interface is used as the estimator for its own items, if the autonomous
+ * component is configured to order items by cost.
+ */
+public interface ItemCostEstimator<T extends Item> {
+
+    /**
+     * Estimate the cost of working on an item. The unit is up to the implementation, as the estimates are only
+     * compared to each other.
+     *
+     * @param item the item
+     *
+     * @return the estimated cost. Items where the cost is unknown should be given the cost 0
+     */
+    long estimateCost(T item);
+}
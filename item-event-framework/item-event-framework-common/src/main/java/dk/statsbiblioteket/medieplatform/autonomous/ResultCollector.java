@@ -6,9 +6,11 @@ import org.slf4j.Logger;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,6 +30,7 @@ public class ResultCollector {
     private Integer maxResults;
     private int resultCount;
     private Failure lastFailure;
+    private Checkpoint checkpoint;
 
     /**
      *
@@ -179,6 +182,71 @@ public class ResultCollector {
         return that;
     }
 
+    /**
+     * Copy the failures concerning a subtree into a new result collector. A failure concerns the subtree if the
+     * reference is the name of the subtree, or starts with the name of the subtree followed by "/".
+     *
+     * @param subtree the name of the subtree
+     *
+     * @return a new result collector with the failures of the subtree, and no limit on the number of results
+     */
+    public synchronized ResultCollector getFailuresIn(String subtree) {
+        ResultCollector result = new ResultCollector(resultStructure.getTool(), resultStructure.getVersion(), null);
+        for (Failure failure : getFailures()) {
+            String reference = failure.getFilereference();
+            if (reference != null && (reference.equals(subtree) || reference.startsWith(subtree + "/"))) {
+                result.resultStructure.getFailures().getFailure().add(failure);
+                result.setSuccess(false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Recreate a result collector from a report
+     *
+     * @param report the report, as returned by {@link #toReport()}
+     *
+     * @return the result collector, with no limit on the number of results
+     * @throws JAXBException if the report could not be parsed
+     */
+    public static ResultCollector fromReport(String report) throws JAXBException {
+        JAXBContext context = JAXBContext.newInstance(ObjectFactory.class);
+        Unmarshaller unmarshaller = context.createUnmarshaller();
+        Result result = (Result) unmarshaller.unmarshal(new StringReader(report));
+        ResultCollector resultCollector = new ResultCollector(result.getTool(), result.getVersion(), null);
+        resultCollector.resultStructure = result;
+        return resultCollector;
+    }
+
+    /**
+     * Get the checkpoint of the work, recording the completed parts of the work, so they can be skipped if the work
+     * is resumed after being interrupted
+     *
+     * @return the checkpoint, or null if the work is not checkpointed
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Set the checkpoint of the work
+     *
+     * @param checkpoint the checkpoint, or null if the work is not checkpointed
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Get the number of failures collected, not counting failures dropped as the max number of results was reached
+     *
+     * @return the number of failures
+     */
+    public synchronized int getFailureCount() {
+        return resultStructure.getFailures().getFailure().size();
+    }
+
     /**
      * Get the list of failures. This method is only meant to be used for merging purposes
      *
@@ -0,0 +1,50 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedExecutorServiceTest {
+
+    /**
+     * No more than the max number of tasks should run at the same time, even if the delegate starts a thread for each
+     * task, and all tasks should complete
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrencyBounded() throws Exception {
+        BoundedExecutorService executor = new BoundedExecutorService(Executors.newCachedThreadPool(), 3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final int number = i;
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    Thread.sleep(10);
+                    running.decrementAndGet();
+                    return number;
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assert.assertEquals(futures.get(i).get(10, TimeUnit.SECONDS).intValue(), i);
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(maxRunning.get() <= 3, "Ran " + maxRunning.get() + " tasks at the same time");
+    }
+}
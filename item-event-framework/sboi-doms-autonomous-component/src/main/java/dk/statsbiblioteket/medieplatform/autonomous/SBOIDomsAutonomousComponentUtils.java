@@ -3,6 +3,7 @@ package dk.statsbiblioteket.medieplatform.autonomous;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
 import java.util.Properties;
 
 public class SBOIDomsAutonomousComponentUtils extends AutonomousComponentUtils {
@@ -39,6 +40,33 @@ public class SBOIDomsAutonomousComponentUtils extends AutonomousComponentUtils {
      * autonomous.oldEvents: String list, comma separated: The list of event IDs that the batch must have
      * experienced AFTER last update to the object or not at all
      * autonomous.itemTypes: String list, comma separated: The list of event types (content models) to consider.
+     * autonomous.distributedWorkQueue: Boolean: If true, the instances of the component share a work queue in the
+     * lock server. Default false
+     * autonomous.costLookahead: Integer: The number of triggered items to read ahead and order by estimated cost, if
+     * the component is an ItemCostEstimator. Default 0
+     * autonomous.adaptiveConcurrency: Boolean: If true, the number of concurrent workers is adjusted at runtime,
+     * between autonomous.minThreads and autonomous.maxThreads. Default false
+     * autonomous.minThreads: Integer: The lowest number of concurrent workers, if adjusted at runtime. Default 1
+     * autonomous.virtualThreads: Boolean: If true, workers are run on virtual threads, if supported by the JVM.
+     * Default false
+     * autonomous.reconnectTimeout: Long: The number of milliseconds to wait for a lost lock server connection to be
+     * restored, before the workers are stopped. Default one minute
+     * autonomous.outboxDirectory: String: Directory where results are journaled until they are stored. Default unset
+     * autonomous.checkpointDirectory: String: Directory where the completed parts of the work are checkpointed. Default unset
+     * autonomous.metricsPort: Integer: Port to serve scheduling metrics on, in the Prometheus text format at /metrics.
+     * The metrics are always available over JMX. Default unset
+     * autonomous.sharding: Boolean: If true, the triggered items are sharded across the live instances of the
+     * component, and each instance tries its own items first. Default false
+     * autonomous.heldElsewhereMaxAge: Long: Max number of milliseconds to leave out items found locked by other
+     * instances, until their locks are released. 0 to try all items on every poll. Default 600000
+     * autonomous.sboi.prefetchPages: Integer: The max number of SBOI pages to fetch in the background, while the
+     * current page is consumed. 0 to fetch each page when needed. Default 1
+     * autonomous.sboi.prefetchMaxBytes: Long: The max estimated size of the SBOI pages fetched in the background.
+     * Default 16777216
+     * autonomous.sboi.detailThreads: Integer: The max number of items of an SBOI page to read from DOMS concurrently.
+     * Default 4
+     * autonomous.sboi.prefilter: Boolean: If true, triggered items are found from the events stored in SBOI, and only
+     * read from DOMS when locked, to check that they are still triggered. Default true
      * @see AutonomousComponentUtils#startAutonomousComponent(java.util.Properties, RunnableComponent, EventTrigger, EventStorer)
      */
     public static <T extends Item> CallResult<T> startAutonomousComponent(Properties properties,
@@ -47,16 +75,77 @@ public class SBOIDomsAutonomousComponentUtils extends AutonomousComponentUtils {
         return startAutonomousComponent(properties,
                                                component,
                                                getEventTrigger(properties, itemFactory),
-                                               getEventStorer(properties, itemFactory));
+                                               getEventStorer(properties, itemFactory),
+                                               itemFactory);
+    }
+
+    /**
+     * Create an autonomous component from a runnable component and run it as a daemon, polling for work every
+     * autonomous.pollInterval milliseconds. The SBOI and DOMS clients are created once, and reused for every poll.
+     * This method blocks until the JVM is shut down.
+     *
+     * @param properties  the properties to use
+     * @param component   the runnable component to invoke
+     * @param itemFactory the item factory
+     *
+     * @see AutonomousComponentUtils#startAutonomousComponentDaemon(java.util.Properties, RunnableComponent, EventTrigger, EventStorer)
+     */
+    public static <T extends Item> void startAutonomousComponentDaemon(Properties properties,
+                                                                       RunnableComponent<T> component,
+                                                                       ItemFactory<T> itemFactory) {
+        startAutonomousComponentDaemon(properties,
+                                       component,
+                                       getEventTrigger(properties, itemFactory),
+                                       getEventStorer(properties, itemFactory),
+                                       itemFactory);
+    }
+
+    /**
+     * Run several components in one process, each as a daemon. The components share one lock server session, one
+     * DOMS client, and one SBOI query per poll, covering the union of the queries of the components. The hits of the
+     * shared query are reused for autonomous.pollInterval milliseconds of the host properties.
+     *
+     * @param hostProperties the properties of the host, specifying the lock server, SBOI and DOMS
+     * @param components     the runnable components to invoke, and the properties of each component
+     * @param itemFactory    the item factory
+     *
+     * @see AutonomousComponentUtils#startAutonomousComponentHost(java.util.Properties, java.util.Map, EventTrigger, EventStorer, ItemFactory)
+     */
+    public static <T extends Item> void startAutonomousComponentHost(Properties hostProperties,
+                                                                     Map<RunnableComponent<T>, Properties> components,
+                                                                     ItemFactory<T> itemFactory) {
+        DomsEventStorage<T> eventStorer = getEventStorer(hostProperties, itemFactory);
+        long pollInterval = Long.parseLong(hostProperties.getProperty(ConfigConstants.AUTONOMOUS_POLL_INTERVAL,
+                                                                      60 * 1000l + ""));
+        SharedSBOIEventIndex<T> eventTrigger = new SharedSBOIEventIndex<>(getEventTrigger(hostProperties,
+                                                                                          itemFactory,
+                                                                                          eventStorer),
+                                                                          pollInterval);
+        startAutonomousComponentHost(hostProperties, components, eventTrigger, eventStorer, itemFactory);
     }
 
     protected static synchronized <T extends Item> SBOIEventIndex<T> getEventTrigger(Properties properties,
                                                                                      ItemFactory<T> itemFactory) {
+        return getEventTrigger(properties, itemFactory, getEventStorer(properties, itemFactory));
+    }
+
+    protected static synchronized <T extends Item> SBOIEventIndex<T> getEventTrigger(Properties properties,
+                                                                                     ItemFactory<T> itemFactory,
+                                                                                     DomsEventStorage<T> eventStorer) {
         try {
-            return new SBOIEventIndex<>(properties.getProperty(ConfigConstants.AUTONOMOUS_SBOI_URL),
-                                               new PremisManipulatorFactory<>(PremisManipulatorFactory.TYPE,
-                                                                                     itemFactory),
-                                               getEventStorer(properties, itemFactory),Integer.parseInt(properties.getProperty(ConfigConstants.SBOI_PAGESIZE,"100")));
+            SBOIEventIndex<T> eventTrigger = new SBOIEventIndex<>(
+                    properties.getProperty(ConfigConstants.AUTONOMOUS_SBOI_URL),
+                    new PremisManipulatorFactory<>(PremisManipulatorFactory.TYPE, itemFactory),
+                    eventStorer,
+                    Integer.parseInt(properties.getProperty(ConfigConstants.SBOI_PAGESIZE, "100")));
+            eventTrigger.setPrefetch(Integer.parseInt(properties.getProperty(ConfigConstants.SBOI_PREFETCH_PAGES, "1")),
+                                     Long.parseLong(properties.getProperty(ConfigConstants.SBOI_PREFETCH_MAX_BYTES,
+                                                                           16 * 1024 * 1024 + "")));
+            eventTrigger.setDetailThreads(Integer.parseInt(properties.getProperty(ConfigConstants.SBOI_DETAIL_THREADS,
+                                                                                  "4")));
+            eventTrigger.setPrefilter(Boolean.parseBoolean(properties.getProperty(ConfigConstants.SBOI_PREFILTER,
+                                                                                  "true")));
+            return eventTrigger;
         } catch (Exception e) {
             log.error("Unable to initialize event trigger", e);
             throw new InitialisationException("Unable to initialize event trigger", e);
@@ -3,6 +3,8 @@ package dk.statsbiblioteket.medieplatform.autonomous;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.slf4j.Logger;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -12,6 +14,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -27,6 +30,10 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
     protected final DomsEventStorage<T> domsEventStorage;
     protected final HttpSolrServer summaSearch;
     protected final int pageSize;
+    protected int prefetchPages = 0;
+    protected long prefetchMaxBytes = 0;
+    protected int detailThreads = 1;
+    protected boolean prefilter = false;
 
     public SBOIEventIndex(String summaLocation, PremisManipulatorFactory<T> premisManipulatorFactory,
                           DomsEventStorage<T> domsEventStorage, int pageSize) throws MalformedURLException {
@@ -39,21 +46,29 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
 
 
 
+    /**
+     * Get the triggered items. The items are found lazily, as the returned iterator is consumed, so no more pages are
+     * fetched from SBOI and DOMS than needed. The returned iterator is {@link Closeable}, and should be closed if it is
+     * not consumed to the end.
+     * <p>
+     * If prefiltering, the items are checked against the events stored in SBOI, without going to DOMS, and the items
+     * returned have no event details. Queries for specific items, as used to check that an item is still triggered
+     * before working on it, are always checked against DOMS. This way, only the items actually worked on are read from
+     * DOMS. Prefiltering is off by default, as callers must then query the items specifically before working on them.
+     *
+     * @param query the query
+     *
+     * @return the triggered items
+     * @throws CommunicationException if the communication failed
+     */
     @Override
     public Iterator<T> getTriggeredItems(Query<T> query) throws CommunicationException {
-        Iterator<T> sboiItems = search(true, query);
-        ArrayList<T> result = new ArrayList<>();
-        while (sboiItems.hasNext()) {
-            T next = sboiItems.next();
-            if (match(next, query)) {
-                result.add(next);
-            }
-        }
-        return result.iterator();
+        boolean details = !prefilter || !query.getItems().isEmpty();
+        return new MatchingIterator(search(details, query), query);
     }
 
     /**
-     * Check that the item matches the requirements expressed in the three lists
+     * Check that the item matches the requirements expressed in the three lists, and is not ignored
      *
      * @param item                the item to check
      * @param query query that must be fulfilled
@@ -86,8 +101,10 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
 
 
 
+        boolean notIgnored = !query.getIgnoredDomsIDs().contains(item.getDomsID());
+
         //TODONT we do not check for types for now
-        return successEventsGood  && oldEventsGood && futureEventsGood && (query.getItems()
+        return notIgnored && successEventsGood  && oldEventsGood && futureEventsGood && (query.getItems()
                                                                                 .isEmpty() || query.getItems()
                                                                                                    .contains(item));
     }
@@ -115,11 +132,49 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
      * @throws CommunicationException if the communication failed
      */
     public Iterator<T> search(boolean details, Query<T> query) throws CommunicationException {
-       return search(details, toQueryString(query));
+        return new SolrProxyIterator<>(toQueryString(query), details, summaSearch, premisManipulatorFactory,
+                                       domsEventStorage, pageSize, new HashSet<>(query.getIgnoredDomsIDs()),
+                                       prefetchPages, prefetchMaxBytes, detailThreads);
     }
 
     public Iterator<T> search(boolean details, String freeFormSearchString) throws CommunicationException {
-        return new SolrProxyIterator<>(freeFormSearchString,details,summaSearch,premisManipulatorFactory,domsEventStorage,pageSize);
+        return new SolrProxyIterator<>(freeFormSearchString, details, summaSearch, premisManipulatorFactory,
+                                       domsEventStorage, pageSize, Collections.<String>emptySet(), prefetchPages,
+                                       prefetchMaxBytes, detailThreads);
+    }
+
+    /**
+     * Fetch the next pages of a search from SBOI in the background, while the current page is consumed
+     *
+     * @param pages    the max number of pages to fetch ahead, or 0 to fetch each page when it is needed
+     * @param maxBytes the max estimated size of the pages fetched ahead. At least one page is fetched ahead
+     */
+    public void setPrefetch(int pages, long maxBytes) {
+        this.prefetchPages = pages;
+        this.prefetchMaxBytes = maxBytes;
+    }
+
+    /**
+     * Read the details of the items of each page from DOMS concurrently
+     *
+     * @param detailThreads the max number of items to read from DOMS at a time. Default 1
+     */
+    public void setDetailThreads(int detailThreads) {
+        this.detailThreads = detailThreads;
+    }
+
+    /**
+     * Check the triggered items against the events stored in SBOI, and only go to DOMS for queries for specific items.
+     * See {@link #getTriggeredItems(Query)}
+     *
+     * @param prefilter true to prefilter in SBOI, false to check all triggered items against DOMS. Default false
+     */
+    public void setPrefilter(boolean prefilter) {
+        this.prefilter = prefilter;
+    }
+
+    public boolean isPrefilter() {
+        return prefilter;
     }
 
 
@@ -168,8 +223,54 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
             itemsString = getResultRestrictions(query.getItems());
         }
 
-        List<String> events = new ArrayList<>();
+        List<String> events = getEventRestrictions(query);
+
+        for (String type : query.getTypes()) {
+            events.add(String.format(" +item_model:%1$s ", quoted(type)));
+        }
 
+        return base + itemsString + anded(events);
+    }
+
+    /**
+     * Converts several queries to a single solr query string, matching the items matched by any of the queries. The
+     * items of the queries are ignored, and the queries must have the same types.
+     *
+     * @param queries the queries, all with the same types
+     * @return the query string
+     * @see #toQueryString(Query)
+     */
+    protected String toUnionQueryString(Collection<Query<T>> queries) {
+        StringBuilder union = new StringBuilder();
+        Collection<String> types = null;
+        for (Query<T> query : queries) {
+            if (types == null) {
+                types = query.getTypes();
+            } else if (!types.equals(query.getTypes())) {
+                throw new IllegalArgumentException("Queries of a union must have the same types");
+            }
+            if (union.length() > 0) {
+                union.append(" OR ");
+            }
+            union.append("(").append(based()).append(anded(getEventRestrictions(query))).append(")");
+        }
+        List<String> typeRestrictions = new ArrayList<>();
+        if (types != null) {
+            for (String type : types) {
+                typeRestrictions.add(String.format(" +item_model:%1$s ", quoted(type)));
+            }
+        }
+        return based() + " AND (" + union + ")" + anded(typeRestrictions);
+    }
+
+    /**
+     * Get the restrictions on the events of the items, as described in {@link #toQueryString(Query)}
+     *
+     * @param query the query
+     * @return a modifiable list of restrictions, to be anded
+     */
+    private List<String> getEventRestrictions(Query<T> query) {
+        List<String> events = new ArrayList<>();
 
         for (String successfulPastEvent : query.getPastSuccessfulEvents()) {
             events.add(String.format(" +success_event:%1$s ", quoted(successfulPastEvent)));
@@ -183,18 +284,60 @@ public class SBOIEventIndex<T extends Item> implements EventTrigger<T> {
         for (String futureEvent : query.getFutureEvents()) {
             events.add(String.format(" -event:%1$s ", quoted(futureEvent)));
         }
-
-        for (String type : query.getTypes()) {
-            events.add(String.format(" +item_model:%1$s ", quoted(type)));
-        }
-
-        return base + itemsString + anded(events);
+        return events;
     }
 
     protected String based() {
         return spaced("recordBase:doms_sboiCollection");
     }
 
+    /**
+     * Iterator returning the items of the wrapped iterator that match the query, as they are read
+     */
+    private class MatchingIterator implements Iterator<T>, Closeable {
+        private final Iterator<T> delegate;
+        private final Query<T> query;
+        private T next = null;
+
+        private MatchingIterator(Iterator<T> delegate, Query<T> query) {
+            this.delegate = delegate;
+            this.query = query;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && delegate.hasNext()) {
+                T candidate = delegate.next();
+                if (match(candidate, query)) {
+                    next = candidate;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate instanceof Closeable) {
+                ((Closeable) delegate).close();
+            }
+        }
+    }
+
     protected String getResultRestrictions(Collection<T> items) {
         StringBuilder itemsString = new StringBuilder();
         itemsString.append(" AND ( ");
@@ -0,0 +1,191 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Event trigger shared by several components running in the same process. Rather than querying SBOI for each
+ * component, one query covering the union of the queries of the components is performed, and the hits are split
+ * between the components client-side, by checking them against the query of each component.
+ * <p>
+ * The queries are registered when the components first ask for triggered items. The hits of the union query are
+ * reused until they are older than the max age, so SBOI and DOMS are queried at most once per max age, no matter how
+ * many components share the index. A query not covered by the current hits causes a new union query.
+ * <p>
+ * Queries for specific items, as used to check that an item is still triggered before working on it, are never
+ * shared, but passed directly to the index. If the index prefilters, the union query is only checked against the
+ * events stored in SBOI, as the items are checked against DOMS when they are queried specifically. Queries with
+ * different types can not be combined, so a union query is performed for each distinct set of types.
+ * <p>
+ * The union query is performed outside the monitor of the index, by the first component needing it, while the other
+ * components needing the same set of types wait for it, so at most one union query is in flight for each set of types.
+ * The hits of the last union query of each set of types are held in memory until the next union query, so the memory
+ * used grows with the number of items triggered for all the components, rather than being bounded by a page.
+ *
+ * @param <T> the type of items
+ */
+public class SharedSBOIEventIndex<T extends Item> implements EventTrigger<T> {
+
+    private static Logger log = org.slf4j.LoggerFactory.getLogger(SharedSBOIEventIndex.class);
+
+    private final SBOIEventIndex<T> index;
+    private final long maxAge;
+
+    /**
+     * The registered queries, by query string
+     */
+    private final Map<String, Query<T>> queries = new LinkedHashMap<>();
+    /**
+     * The hits of the last union query for each set of types
+     */
+    private final Map<Set<String>, UnionHits> hits = new HashMap<>();
+    /**
+     * The union queries in flight for each set of types
+     */
+    private final Map<Set<String>, FutureTask<UnionHits>> searches = new HashMap<>();
+
+    /**
+     * Create a new shared event index
+     *
+     * @param index  the index to query
+     * @param maxAge the max number of milliseconds to reuse the hits of a union query
+     */
+    public SharedSBOIEventIndex(SBOIEventIndex<T> index, long maxAge) {
+        this.index = index;
+        this.maxAge = maxAge;
+    }
+
+    @Override
+    public Iterator<T> getTriggeredItems(Query<T> query) throws CommunicationException {
+        if (!query.getItems().isEmpty()) {
+            return index.getTriggeredItems(query);
+        }
+        List<T> result = new ArrayList<>();
+        for (T hit : getHits(query)) {
+            if (index.match(hit, query)) {
+                result.add(hit);
+            }
+        }
+        return result.iterator();
+    }
+
+    /**
+     * Get the hits of the union query covering the given query, performing the union query if the hits are too old
+     * or do not cover the query. If a union query with the same types is already in flight, wait for it instead.
+     *
+     * @param query the query
+     *
+     * @return the hits, including hits for other queries with the same types
+     * @throws CommunicationException if the communication failed
+     */
+    private List<T> getHits(Query<T> query) throws CommunicationException {
+        String queryString = index.toQueryString(query);
+        Set<String> types = new HashSet<>(query.getTypes());
+        while (true) {
+            FutureTask<UnionHits> search;
+            boolean searching = false;
+            synchronized (this) {
+                queries.put(queryString, query);
+                UnionHits current = hits.get(types);
+                if (current != null && current.queryStrings.contains(queryString)
+                    && System.currentTimeMillis() - current.timestamp <= maxAge) {
+                    log.debug("Reusing {} hits of the shared query", current.items.size());
+                    return current.items;
+                }
+                search = searches.get(types);
+                if (search == null) {
+                    search = newSearch(types);
+                    searches.put(types, search);
+                    searching = true;
+                }
+            }
+            UnionHits result;
+            try {
+                if (searching) {
+                    search.run();
+                } else {
+                    log.debug("Waiting for the shared query in flight");
+                }
+                result = search.get();
+                if (searching) {
+                    synchronized (this) {
+                        hits.put(types, result);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommunicationException("Interrupted while waiting for the shared query", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CommunicationException) {
+                    throw (CommunicationException) e.getCause();
+                }
+                throw new CommunicationException("Failed to query SBOI", e.getCause());
+            } finally {
+                if (searching) {
+                    synchronized (this) {
+                        searches.remove(types);
+                    }
+                }
+            }
+            if (result.queryStrings.contains(queryString)) {
+                return result.items;
+            }
+            //The query was registered after the union query in flight was made, so make a new union query
+        }
+    }
+
+    /**
+     * Make the union query of all registered queries with the given types. The query is made while holding the
+     * monitor, but performed when the task is run.
+     *
+     * @param types the types
+     *
+     * @return the task performing the query
+     */
+    private FutureTask<UnionHits> newSearch(Set<String> types) {
+        final UnionHits result = new UnionHits();
+        final List<Query<T>> union = new ArrayList<>();
+        for (Map.Entry<String, Query<T>> entry : queries.entrySet()) {
+            if (types.equals(entry.getValue().getTypes())) {
+                union.add(entry.getValue());
+                result.queryStrings.add(entry.getKey());
+            }
+        }
+        final String unionQueryString = index.toUnionQueryString(union);
+        return new FutureTask<>(new Callable<UnionHits>() {
+            @Override
+            public UnionHits call() throws CommunicationException {
+                long start = System.currentTimeMillis();
+                Iterator<T> found = index.search(!index.isPrefilter(), unionQueryString);
+                try {
+                    while (found.hasNext()) {
+                        result.items.add(found.next());
+                    }
+                } catch (RuntimeException e) {
+                    throw new CommunicationException("Failed to query SBOI", e);
+                }
+                log.info("Shared query for {} components found {} items in {} ms", union.size(), result.items.size(),
+                         System.currentTimeMillis() - start);
+                return result;
+            }
+        });
+    }
+
+    private class UnionHits {
+        private final long timestamp = System.currentTimeMillis();
+        private final Collection<String> queryStrings = new HashSet<>();
+        private final List<T> items = new ArrayList<>();
+    }
+}
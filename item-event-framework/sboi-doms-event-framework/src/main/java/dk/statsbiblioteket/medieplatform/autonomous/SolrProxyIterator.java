@@ -8,13 +8,25 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.slf4j.Logger;
 
+import java.io.Closeable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This is the solr proxy iterator. This is the thing that handles paged solr searched, without
@@ -22,11 +34,24 @@ import java.util.NoSuchElementException;
  * When a fixed number of hits have been retrieved from solr, it performs a search to get the
  * next set of hits. It will continue to do so while there are hits in solr.
  *
- * All hits are sorted by item creation time. This way, the sorting is stable, and any changes or additions
- * will always happen in the end of the list. Thus, we can use offset in the list to do paging.
+ * All hits are sorted by item creation time, and then by uuid. This way, the sorting is stable and total, and any
+ * changes or additions will always happen in the end of the list. Rather than using an offset in the list, each page
+ * asks for the hits sorted after the last hit of the previous page. This way, each page costs the same no matter how
+ * deep it is, and hits are not skipped or repeated when the index is updated while paging. If the last hit of a page
+ * have no creation time, the paging falls back to using the offset in the list.
+ *
+ * If prefetching is enabled, the next pages are fetched from sboi in the background, while the current page is
+ * consumed. At most the given number of pages, and roughly the given number of bytes, are fetched ahead.
+ *
+ * If details are requested, the items of a page can be read from DOMS concurrently, by at most the given number of
+ * threads. The items keep the order of the hits.
+ *
+ * Closing the iterator stops it from fetching further pages.
+ *
+ * Hits with an ignored DOMS ID are left out before their details are fetched.
  * @param <T> the type of items
  */
-public class SolrProxyIterator<T extends Item> implements Iterator<T> {
+public class SolrProxyIterator<T extends Item> implements Iterator<T>, Closeable {
     public static final String PREMIS_NO_DETAILS = "premis_no_details";
     public static final String LAST_MODIFIED = "lastmodified_date";
     public static final String SORT_DATE = "initial_date";
@@ -42,8 +67,29 @@ public class SolrProxyIterator<T extends Item> implements Iterator<T> {
     protected final PremisManipulatorFactory<T> premisManipulatorFactory;
     protected final DomsEventStorage<T> domsEventStorage;
     protected final int rows;
+    protected final Collection<String> ignoredDomsIDs;
     protected int start = 0;
-    protected int position = 0;
+    protected int pageHits = 0;
+    protected String lastSortDate = null;
+    protected String lastUuid = null;
+    protected boolean keyset = true;
+
+    /**
+     * The threads fetching pages in the background, shared by all iterators
+     */
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(daemonThreads("sboi-prefetch"));
+    /**
+     * The threads reading the details of items from DOMS, shared by all iterators
+     */
+    private static final ExecutorService detailFetcher = Executors.newCachedThreadPool(daemonThreads("doms-details"));
+    protected final int detailThreads;
+    protected final int prefetchPages;
+    protected final long prefetchMaxBytes;
+    private final Queue<Page> prefetched = new ArrayDeque<>();
+    private long prefetchedBytes = 0;
+    private boolean fetching = false;
+    private boolean exhausted = false;
+    private boolean closed = false;
 
 
     /**
@@ -57,24 +103,81 @@ public class SolrProxyIterator<T extends Item> implements Iterator<T> {
     public SolrProxyIterator(String queryString, boolean details, HttpSolrServer summaSearch,
                              PremisManipulatorFactory<T> premisManipulatorFactory,
                              DomsEventStorage<T> domsEventStorage, int pageSize) {
+        this(queryString, details, summaSearch, premisManipulatorFactory, domsEventStorage, pageSize,
+             Collections.<String>emptySet());
+    }
+
+    /**
+     * Create a new solr proxy iterator, leaving out some items
+     * @param queryString the query string for solr
+     * @param details should details be fetched from DOMS or Solr. True means that details are fetched from doms. False means use only what is in the sboi index, which lacks certain fields
+     * @param summaSearch the http solr server to query
+     * @param premisManipulatorFactory the premis factory to parse the premis into items
+     * @param domsEventStorage the doms event storage to use, if details is true. Can be null if details are false
+     * @param ignoredDomsIDs the DOMS IDs of the items to leave out
+     */
+    public SolrProxyIterator(String queryString, boolean details, HttpSolrServer summaSearch,
+                             PremisManipulatorFactory<T> premisManipulatorFactory,
+                             DomsEventStorage<T> domsEventStorage, int pageSize, Collection<String> ignoredDomsIDs) {
+        this(queryString, details, summaSearch, premisManipulatorFactory, domsEventStorage, pageSize, ignoredDomsIDs,
+             0, 0, 1);
+    }
+
+    /**
+     * Create a new solr proxy iterator, leaving out some items, and fetching pages ahead in the background
+     * @param queryString the query string for solr
+     * @param details should details be fetched from DOMS or Solr. True means that details are fetched from doms. False means use only what is in the sboi index, which lacks certain fields
+     * @param summaSearch the http solr server to query
+     * @param premisManipulatorFactory the premis factory to parse the premis into items
+     * @param domsEventStorage the doms event storage to use, if details is true. Can be null if details are false
+     * @param ignoredDomsIDs the DOMS IDs of the items to leave out
+     * @param prefetchPages the max number of pages to fetch ahead, or 0 to fetch each page when it is needed
+     * @param prefetchMaxBytes the max estimated size of the pages fetched ahead. At least one page is fetched ahead
+     * @param detailThreads the max number of items of a page to read from DOMS concurrently, if details are requested
+     */
+    public SolrProxyIterator(String queryString, boolean details, HttpSolrServer summaSearch,
+                             PremisManipulatorFactory<T> premisManipulatorFactory,
+                             DomsEventStorage<T> domsEventStorage, int pageSize, Collection<String> ignoredDomsIDs,
+                             int prefetchPages, long prefetchMaxBytes, int detailThreads) {
+        this.ignoredDomsIDs = ignoredDomsIDs;
+        this.detailThreads = Math.max(1, detailThreads);
+        this.prefetchPages = prefetchPages;
+        this.prefetchMaxBytes = prefetchMaxBytes;
         this.queryString = queryString;
         this.details = details;
         this.summaSearch = summaSearch;
         this.premisManipulatorFactory = premisManipulatorFactory;
         this.domsEventStorage = domsEventStorage;
         rows = pageSize;
-        search();
+        if (prefetchPages > 0) {
+            items = Collections.<T>emptyList().iterator();
+            prefetchMore();
+        } else {
+            search();
+        }
     }
 
     @Override
     /**
      * If at least one item remains in the cache, return true. Otherwise, do a search in sboi for more hits.
      * If any more hits are found return true and put them in cache. Otherwise return false.
+     * Pages where all hits were left out are skipped, so the iteration only ends when sboi have no more hits.
      */
     public synchronized boolean hasNext() {
-        if (position >= rows) {
-            start += rows;
-            position = 0;
+        if (closed) {
+            return false;
+        }
+        if (prefetchPages > 0) {
+            while (!items.hasNext()) {
+                SolrDocumentList page = takePage();
+                if (page == null) {
+                    return false;
+                }
+                items = toItems(page).iterator();
+            }
+            return true;
+        }
+        while (!items.hasNext() && pageHits >= rows) {
             search();
         }
         return items.hasNext();
@@ -85,53 +188,277 @@ public class SolrProxyIterator<T extends Item> implements Iterator<T> {
      * @see #items
      */
     protected void search() {
+        items = toItems(fetchPage()).iterator();
+    }
+
+    /**
+     * Fetch the next page of hits from sboi, and move on to the page after it
+     * @return the hits
+     */
+    protected SolrDocumentList fetchPage() {
         try {
             SolrQuery query = new SolrQuery();
-            query.setQuery(queryString);
+            if (keyset && lastUuid != null) {
+                query.setQuery("(" + queryString + ") AND " + sortedAfter(lastSortDate, lastUuid));
+            } else {
+                query.setQuery(queryString);
+                query.setStart(start);
+            }
             query.setRows(rows); //Fetch size. Do not go over 1000 unless you specify fields to fetch which does not include content_text
-            query.setStart(start);
             //IMPORTANT!Only use facets if needed.
             query.set("facet", "false"); //very important. Must overwrite to false. Facets are very slow and expensive.
-            query.setFields(SBOIEventIndex.UUID, LAST_MODIFIED);
+            query.setFields(SBOIEventIndex.UUID, LAST_MODIFIED, SORT_DATE);
             if (!details) {
                 query.addField(PREMIS_NO_DETAILS);
             }
 
             query.addSort(SORT_DATE, SolrQuery.ORDER.asc);
+            query.addSort(SBOIEventIndex.UUID, SolrQuery.ORDER.asc);
 
             QueryResponse response = summaSearch.query(query, SolrRequest.METHOD.POST);
             SolrDocumentList results = response.getResults();
-            List<T> hits = new ArrayList<>();
+            pageHits = results.size();
+            start += rows;
+            if (!results.isEmpty()) {
+                SolrDocument last = results.get(results.size() - 1);
+                lastUuid = last.getFirstValue(SBOIEventIndex.UUID).toString();
+                lastSortDate = formatSortDate(last.getFirstValue(SORT_DATE));
+                if (lastSortDate == null) {
+                    keyset = false;
+                }
+            }
+            return results;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Convert a page of hits to items, leaving out the ignored hits. If details are requested, the items are read
+     * from DOMS, and items not found in DOMS are left out.
+     * @param results the hits
+     * @return the items
+     */
+    protected List<T> toItems(SolrDocumentList results) {
+        try {
+            List<SolrDocument> wanted = new ArrayList<>();
             for (SolrDocument result : results) {
-                T hit;
                 String uuid = result.getFirstValue(SBOIEventIndex.UUID).toString();
-                String lastModified = result.getFirstValue(LAST_MODIFIED).toString();
-
-                if (!details) { //no details, so we can retrieve everything from Summa
-                    String blob;
-                    if (result.getFirstValue(PREMIS_NO_DETAILS) == null) {
-                        hit = premisManipulatorFactory.createInitialPremisBlob(uuid).toItem();
-                    } else {
-                        blob = result.getFirstValue(PREMIS_NO_DETAILS).toString();
-                        hit = premisManipulatorFactory.createFromStringBlob(blob).toItem();
-                    }
-                } else {//Details requested so go to DOMS
-                    try {
-                        hit = domsEventStorage.getItemFromDomsID(uuid);
-                    } catch (NotFoundException e) {
-                        continue;
-                    }
+                if (ignoredDomsIDs.contains(uuid)) {
+                    log.debug("Leaving out ignored item {}", uuid);
+                    continue;
                 }
-                hit.setDomsID(uuid);
-                hit.setLastModified(parseDate(lastModified));
-                hits.add(hit);
+                wanted.add(result);
             }
-            items = hits.iterator();
+            if (details && detailThreads > 1 && wanted.size() > 1) {
+                return toItemsConcurrently(wanted);
+            }
+            List<T> hits = new ArrayList<>();
+            for (SolrDocument result : wanted) {
+                T hit = toItem(result);
+                if (hit != null) {
+                    hits.add(hit);
+                }
+            }
+            return hits;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Read the items of a page from DOMS, with at most detailThreads reads in progress at a time
+     * @param results the hits
+     * @return the items, in the order of the hits
+     */
+    private List<T> toItemsConcurrently(List<SolrDocument> results) throws Exception {
+        List<Future<T>> futures = new ArrayList<>(results.size());
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                if (i >= detailThreads) {
+                    //Wait for the oldest read in progress, so no more than detailThreads are in progress
+                    futures.get(i - detailThreads).get();
+                }
+                final SolrDocument result = results.get(i);
+                futures.add(detailFetcher.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return toItem(result);
+                    }
+                }));
+            }
+            List<T> hits = new ArrayList<>();
+            for (Future<T> future : futures) {
+                T hit = future.get();
+                if (hit != null) {
+                    hits.add(hit);
+                }
+            }
+            return hits;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Convert a hit to an item
+     * @param result the hit
+     * @return the item, or null if details are requested and the item is not found in DOMS
+     */
+    private T toItem(SolrDocument result) throws Exception {
+        T hit;
+        String uuid = result.getFirstValue(SBOIEventIndex.UUID).toString();
+        String lastModified = result.getFirstValue(LAST_MODIFIED).toString();
+
+        if (!details) { //no details, so we can retrieve everything from Summa
+            String blob;
+            if (result.getFirstValue(PREMIS_NO_DETAILS) == null) {
+                hit = premisManipulatorFactory.createInitialPremisBlob(uuid).toItem();
+            } else {
+                blob = result.getFirstValue(PREMIS_NO_DETAILS).toString();
+                hit = premisManipulatorFactory.createFromStringBlob(blob).toItem();
+            }
+        } else {//Details requested so go to DOMS
+            try {
+                hit = domsEventStorage.getItemFromDomsID(uuid);
+            } catch (NotFoundException e) {
+                return null;
+            }
+        }
+        hit.setDomsID(uuid);
+        hit.setLastModified(parseDate(lastModified));
+        return hit;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Take the next prefetched page, waiting for it if it is being fetched, and start fetching the following page
+     * @return the page, or null if there are no more pages
+     */
+    private synchronized SolrDocumentList takePage() {
+        while (prefetched.isEmpty() && fetching && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next page", e);
+            }
+        }
+        Page page = prefetched.poll();
+        if (page == null) {
+            return null;
+        }
+        prefetchedBytes -= page.bytes;
+        prefetchMore();
+        if (page.failure != null) {
+            throw page.failure;
+        }
+        return page.results;
+    }
+
+    /**
+     * Start fetching the next page in the background, unless a page is being fetched, there are no more pages, or
+     * the prefetched pages have reached the max number or size
+     */
+    private synchronized void prefetchMore() {
+        if (fetching || exhausted || prefetched.size() >= prefetchPages
+            || (!prefetched.isEmpty() && prefetchedBytes >= prefetchMaxBytes)) {
+            return;
+        }
+        fetching = true;
+        prefetcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                Page page;
+                try {
+                    SolrDocumentList results = fetchPage();
+                    page = new Page(results, null, estimateSize(results));
+                } catch (RuntimeException e) {
+                    page = new Page(null, e, 0);
+                }
+                prefetched(page);
+            }
+        });
+    }
+
+    private synchronized void prefetched(Page page) {
+        if (closed) {
+            fetching = false;
+            notifyAll();
+            return;
+        }
+        prefetched.add(page);
+        prefetchedBytes += page.bytes;
+        fetching = false;
+        if (page.failure != null || pageHits < rows) {
+            exhausted = true;
+        }
+        notifyAll();
+        prefetchMore();
+    }
+
+    /**
+     * Estimate the memory used by a page of hits, from the length of the field values
+     * @param results the hits
+     * @return the estimated number of bytes
+     */
+    private static long estimateSize(SolrDocumentList results) {
+        long bytes = 0;
+        for (SolrDocument result : results) {
+            for (Object value : result.values()) {
+                bytes += 64 + 2 * String.valueOf(value).length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the restriction to the hits sorted after the given hit, ie. created later, or created at the same time and
+     * with a larger uuid
+     * @param sortDate the creation time of the hit, as given by solr
+     * @param uuid the uuid of the hit
+     * @return the restriction, as a solr query string
+     */
+    protected static String sortedAfter(String sortDate, String uuid) {
+        String date = SBOIEventIndex.quoted(sortDate);
+        return "( " + SORT_DATE + ":{" + date + " TO *] OR ( +" + SORT_DATE + ":" + date + " +" + SBOIEventIndex.UUID
+               + ":{" + SBOIEventIndex.quoted(uuid) + " TO *] ) )";
+    }
+
+    /**
+     * Format the creation time of a hit for use in a query
+     * @param value the creation time, as returned by solr
+     * @return the formatted creation time, or null if the hit have no creation time
+     */
+    private static String formatSortDate(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format((Date) value);
+        }
+        return value.toString();
+    }
+
     /**
      * Parse a annoying fedora date
      * @param lastModified the date
@@ -158,13 +485,41 @@ public class SolrProxyIterator<T extends Item> implements Iterator<T> {
     public synchronized T next() {
 
         if (hasNext()) {
-            position++;
             return items.next();
         } else {
             throw new NoSuchElementException();
         }
     }
 
+    /**
+     * Stop fetching pages, and drop the hits fetched but not yet returned. A page being fetched in the background is
+     * dropped when it arrives.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        exhausted = true;
+        prefetched.clear();
+        prefetchedBytes = 0;
+        items = Collections.<T>emptyList().iterator();
+        notifyAll();
+    }
+
+    /**
+     * A page fetched in the background, or the failure to fetch it
+     */
+    private static class Page {
+        private final SolrDocumentList results;
+        private final RuntimeException failure;
+        private final long bytes;
+
+        private Page(SolrDocumentList results, RuntimeException failure, long bytes) {
+            this.results = results;
+            this.failure = failure;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Unsupported Exception
      * @throws java.lang.UnsupportedOperationException when called
@@ -3,10 +3,15 @@ package dk.statsbiblioteket.medieplatform.autonomous;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertTrue;
@@ -119,6 +124,100 @@ public class SBOIEventIndexTest {
         assertEquals(Collections.singletonList(newEvent), list);
     }
 
+    /**
+     * The triggered items should be found as they are consumed, and closing them should close the search
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTriggeredItemsLazy() throws Exception {
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        PremisManipulatorFactory pmf = mock(PremisManipulatorFactory.class);
+        DomsEventStorage des = mock(DomsEventStorage.class);
+        SBOIEventIndex<Item> lazyIndex = new SBOIEventIndex<Item>("", pmf, des, 1) {
+            @Override
+            public Iterator<Item> search(boolean details, Query<Item> query) {
+                return new CloseableSearch(read, closed);
+            }
+        };
+        EventTrigger.Query<Item> query = new EventTrigger.Query<>();
+        query.getPastSuccessfulEvents().add(EVENT_ID);
+
+        Iterator<Item> triggered = lazyIndex.getTriggeredItems(query);
+        assertTrue(triggered.hasNext());
+        triggered.next();
+        assertTrue(triggered.hasNext());
+        triggered.next();
+        assertTrue(read.get() <= 4, "Read " + read.get() + " items to return 2 items");
+        ((Closeable) triggered).close();
+        assertTrue(closed.get());
+    }
+
+    /**
+     * When prefiltering, broad queries should only be checked against SBOI, while queries for specific items should be
+     * checked against DOMS. Without prefiltering, which is the default, all queries should be checked against DOMS
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPrefilter() throws Exception {
+        final List<Boolean> detailsUsed = new ArrayList<>();
+        PremisManipulatorFactory pmf = mock(PremisManipulatorFactory.class);
+        DomsEventStorage des = mock(DomsEventStorage.class);
+        SBOIEventIndex<Item> prefilterIndex = new SBOIEventIndex<Item>("", pmf, des, 1) {
+            @Override
+            public Iterator<Item> search(boolean details, Query<Item> query) {
+                detailsUsed.add(details);
+                return Collections.<Item>emptyList().iterator();
+            }
+        };
+        EventTrigger.Query<Item> broadQuery = new EventTrigger.Query<>();
+        broadQuery.getPastSuccessfulEvents().add(EVENT_ID);
+        EventTrigger.Query<Item> itemQuery = new EventTrigger.Query<>();
+        itemQuery.getPastSuccessfulEvents().add(EVENT_ID);
+        itemQuery.getItems().add(createItem());
+
+        prefilterIndex.getTriggeredItems(broadQuery);
+        prefilterIndex.setPrefilter(true);
+        prefilterIndex.getTriggeredItems(broadQuery);
+        prefilterIndex.getTriggeredItems(itemQuery);
+        assertEquals(Arrays.asList(true, false, true), detailsUsed);
+    }
+
+    /**
+     * An endless search, where every other item have the event
+     */
+    private class CloseableSearch implements Iterator<Item>, Closeable {
+        private final AtomicInteger read;
+        private final AtomicBoolean closed;
+
+        private CloseableSearch(AtomicInteger read, AtomicBoolean closed) {
+            this.read = read;
+            this.closed = closed;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed.get();
+        }
+
+        @Override
+        public Item next() {
+            return read.getAndIncrement() % 2 == 0 ? createItem(oldEvent) : createItem();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
     private Item createItem(Event... events) {
         Item item = new Item();
         item.setLastModified(new Date(NOW_TIME));
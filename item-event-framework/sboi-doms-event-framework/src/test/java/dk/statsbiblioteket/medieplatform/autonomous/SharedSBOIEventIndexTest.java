@@ -0,0 +1,156 @@
+package dk.statsbiblioteket.medieplatform.autonomous;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+public class SharedSBOIEventIndexTest {
+
+    private List<String> queryStrings;
+    private SharedSBOIEventIndex<Item> sharedIndex;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        queryStrings = new ArrayList<>();
+        final Item scanned = createItem("scanned", createEvent("Data_Received"));
+        final Item archived = createItem("archived", createEvent("Data_Received"), createEvent("Data_Archived"));
+        SBOIEventIndex<Item> index = new SBOIEventIndex<Item>("",
+                                                              mock(PremisManipulatorFactory.class),
+                                                              mock(DomsEventStorage.class),
+                                                              1) {
+            @Override
+            public Iterator<Item> search(boolean details, String freeFormSearchString) {
+                queryStrings.add(freeFormSearchString);
+                return Arrays.asList(scanned, archived).iterator();
+            }
+        };
+        sharedIndex = new SharedSBOIEventIndex<>(index, 60 * 1000);
+    }
+
+    /**
+     * Components sharing the index should share one query, and get only the items triggering their own query
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testQueriesShared() throws Exception {
+        EventTrigger.Query<Item> archiver = new EventTrigger.Query<>();
+        archiver.getPastSuccessfulEvents().add("Data_Received");
+        archiver.getFutureEvents().add("Data_Archived");
+        EventTrigger.Query<Item> reporter = new EventTrigger.Query<>();
+        reporter.getPastSuccessfulEvents().add("Data_Archived");
+
+        Assert.assertEquals(toIDs(sharedIndex.getTriggeredItems(archiver)), Arrays.asList("scanned"));
+        Assert.assertEquals(toIDs(sharedIndex.getTriggeredItems(reporter)), Arrays.asList("archived"));
+        Assert.assertEquals(queryStrings.size(), 2, "The second query was not covered by the first union query");
+
+        Assert.assertEquals(toIDs(sharedIndex.getTriggeredItems(archiver)), Arrays.asList("scanned"));
+        Assert.assertEquals(toIDs(sharedIndex.getTriggeredItems(reporter)), Arrays.asList("archived"));
+        Assert.assertEquals(queryStrings.size(), 2, "Union query not reused");
+        Assert.assertTrue(queryStrings.get(1).contains("Data_Archived") && queryStrings.get(1).contains(" OR "),
+                          "Not a union query: " + queryStrings.get(1));
+    }
+
+    /**
+     * The union query should be performed outside the monitor of the index, so queries with other types are not
+     * blocked by it, while queries with the same types wait for it rather than making another query
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testQueryInFlightShared() throws Exception {
+        final List<String> searched = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch searching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Item scanned = createItem("scanned", createEvent("Data_Received"));
+        SBOIEventIndex<Item> index = new SBOIEventIndex<Item>("",
+                                                              mock(PremisManipulatorFactory.class),
+                                                              mock(DomsEventStorage.class),
+                                                              1) {
+            @Override
+            public Iterator<Item> search(boolean details, String freeFormSearchString) {
+                searched.add(freeFormSearchString);
+                if (freeFormSearchString.contains("Batch")) {
+                    searching.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return Arrays.asList(scanned).iterator();
+            }
+        };
+        final SharedSBOIEventIndex<Item> shared = new SharedSBOIEventIndex<>(index, 60 * 1000);
+        final EventTrigger.Query<Item> archiver = new EventTrigger.Query<>();
+        archiver.getPastSuccessfulEvents().add("Data_Received");
+        archiver.getTypes().add("Batch");
+        final List<List<String>> results = Collections.synchronizedList(new ArrayList<List<String>>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(toIDs(shared.getTriggeredItems(archiver)));
+                    } catch (CommunicationException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Assert.assertTrue(searching.await(5, TimeUnit.SECONDS), "Union query not started");
+
+        EventTrigger.Query<Item> other = new EventTrigger.Query<>();
+        other.getPastSuccessfulEvents().add("Data_Received");
+        other.getTypes().add("Roundtrip");
+        Assert.assertEquals(toIDs(shared.getTriggeredItems(other)), Arrays.asList("scanned"),
+                            "Query with other types blocked by the query in flight");
+
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        Assert.assertEquals(results.size(), 2, "Not all queries completed");
+        for (List<String> result : results) {
+            Assert.assertEquals(result, Arrays.asList("scanned"));
+        }
+        Assert.assertEquals(searched.size(), 2, "The query in flight was not shared: " + searched);
+    }
+
+    private List<String> toIDs(Iterator<Item> items) {
+        List<String> result = new ArrayList<>();
+        while (items.hasNext()) {
+            result.add(items.next().getDomsID());
+        }
+        return result;
+    }
+
+    private Item createItem(String id, Event... events) {
+        Item item = new Item(id);
+        item.setEventList(Arrays.asList(events));
+        return item;
+    }
+
+    private Event createEvent(String eventID) {
+        Event event = new Event();
+        event.setEventID(eventID);
+        event.setSuccess(true);
+        event.setDate(new Date(0));
+        return event;
+    }
+}
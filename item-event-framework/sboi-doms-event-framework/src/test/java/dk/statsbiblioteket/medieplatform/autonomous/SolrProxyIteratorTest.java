@@ -1,10 +1,31 @@
 package dk.statsbiblioteket.medieplatform.autonomous;
 
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.*;
 
 public class SolrProxyIteratorTest {
@@ -152,4 +173,156 @@ public class SolrProxyIteratorTest {
                 + "  AND  -event:\"Roundtrip_Approved\"  AND  -event:\"Manually_stopped\" ";
         new SolrProxyIterator("item_uuid:*" + longstring, false, new HttpSolrServer("http://prod-search-avis/newspapr/sbsolr/"),new PremisManipulatorFactory("doms:ContentModel_Item", new DomsItemFactory()), new DomsEventStorageFactory().createDomsEventStorage(), 10);
     }
+
+    /**
+     * The next page should be restricted to the hits sorted after the last hit of the previous page, by creation
+     * time and then by uuid
+     */
+    @Test
+    public void testSortedAfter() throws Exception {
+        assertEquals(SolrProxyIterator.sortedAfter("2014-01-02T03:04:05.678Z", "uuid:1234"),
+                     "( initial_date:{\"2014-01-02T03:04:05.678Z\" TO *] OR ( +initial_date:\"2014-01-02T03:04:05.678Z\""
+                     + " +item_uuid:{\"uuid:1234\" TO *] ) )");
+    }
+
+    /**
+     * With prefetching, all hits should be returned in order, and each page after the first should be restricted to
+     * the hits after the last hit of the previous page
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+        final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+        HttpSolrServer summaSearch = mockSummaSearch(queries, 25);
+        DomsEventStorage<Item> domsEventStorage = mock(DomsEventStorage.class);
+        when(domsEventStorage.getItemFromDomsID(anyString())).thenAnswer(new Answer<Item>() {
+            @Override
+            public Item answer(InvocationOnMock invocation) throws Throwable {
+                return new Item((String) invocation.getArguments()[0]);
+            }
+        });
+
+        SolrProxyIterator<Item> iterator = new SolrProxyIterator<>("item_uuid:*", true, summaSearch, null,
+                                                                   domsEventStorage, 10,
+                                                                   Collections.<String>emptySet(), 2, 1024 * 1024, 3);
+        List<String> found = new ArrayList<>();
+        while (iterator.hasNext()) {
+            found.add(iterator.next().getDomsID());
+        }
+        assertEquals(found.size(), 25);
+        for (int i = 0; i < found.size(); i++) {
+            assertEquals(found.get(i), String.format("uuid:%02d", i));
+        }
+        assertEquals(queries.size(), 3);
+        assertEquals(queries.get(0), "item_uuid:*");
+        assertTrue(queries.get(2).endsWith(SolrProxyIterator.sortedAfter("2014-01-01T00:00:00.000Z", "uuid:19")),
+                   queries.get(2));
+    }
+
+    /**
+     * The details of the items should be read concurrently, by no more than the given number of threads. The items
+     * should keep the order of the hits, and items not found in DOMS should be left out.
+     */
+    @Test
+    public void testConcurrentDetails() throws Exception {
+        HttpSolrServer summaSearch = mockSummaSearch(Collections.synchronizedList(new ArrayList<String>()), 10);
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        DomsEventStorage<Item> domsEventStorage = mock(DomsEventStorage.class);
+        when(domsEventStorage.getItemFromDomsID(anyString())).thenAnswer(new Answer<Item>() {
+            @Override
+            public Item answer(InvocationOnMock invocation) throws Throwable {
+                String uuid = (String) invocation.getArguments()[0];
+                int current = inProgress.incrementAndGet();
+                synchronized (maxInProgress) {
+                    maxInProgress.set(Math.max(maxInProgress.get(), current));
+                }
+                try {
+                    Thread.sleep(20);
+                } finally {
+                    inProgress.decrementAndGet();
+                }
+                if (uuid.equals("uuid:05")) {
+                    throw new NotFoundException("not in doms");
+                }
+                return new Item(uuid);
+            }
+        });
+
+        SolrProxyIterator<Item> iterator = new SolrProxyIterator<>("item_uuid:*", true, summaSearch, null,
+                                                                   domsEventStorage, 20,
+                                                                   Collections.<String>emptySet(), 0, 0, 3);
+        List<String> found = new ArrayList<>();
+        while (iterator.hasNext()) {
+            found.add(iterator.next().getDomsID());
+        }
+        assertEquals(found, Arrays.asList("uuid:00", "uuid:01", "uuid:02", "uuid:03", "uuid:04", "uuid:06", "uuid:07",
+                                          "uuid:08", "uuid:09"));
+        assertTrue(maxInProgress.get() > 1, "Details not read concurrently");
+        assertTrue(maxInProgress.get() <= 3, maxInProgress.get() + " reads in progress");
+    }
+
+    /**
+     * Closing the iterator while a consumer waits for a page being prefetched should release the consumer, also when
+     * the page arrives after the iterator was closed
+     */
+    @Test
+    public void testCloseWhileWaitingForPrefetch() throws Exception {
+        final CountDownLatch queried = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        final HttpSolrServer delegateSearch = mockSummaSearch(new ArrayList<String>(), 25);
+        HttpSolrServer summaSearch = mock(HttpSolrServer.class);
+        when(summaSearch.query(any(SolrQuery.class), eq(SolrRequest.METHOD.POST))).thenAnswer(
+                new Answer<QueryResponse>() {
+                    @Override
+                    public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                        queried.countDown();
+                        answer.await();
+                        return delegateSearch.query((SolrQuery) invocation.getArguments()[0], SolrRequest.METHOD.POST);
+                    }
+                });
+        final SolrProxyIterator<Item> iterator = new SolrProxyIterator<>("item_uuid:*", false, summaSearch, null,
+                                                                         mock(DomsEventStorage.class), 10,
+                                                                         Collections.<String>emptySet(), 2,
+                                                                         1024 * 1024, 1);
+        final AtomicBoolean hasNext = new AtomicBoolean(true);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hasNext.set(iterator.hasNext());
+            }
+        });
+        consumer.start();
+        assertTrue(queried.await(5, TimeUnit.SECONDS), "Page not fetched");
+        Thread.sleep(100);
+        iterator.close();
+        answer.countDown();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive(), "Consumer still waiting after close");
+        assertFalse(hasNext.get());
+    }
+
+    private HttpSolrServer mockSummaSearch(final List<String> queries, final int hits) throws Exception {
+        HttpSolrServer summaSearch = mock(HttpSolrServer.class);
+        when(summaSearch.query(any(SolrQuery.class), eq(SolrRequest.METHOD.POST))).thenAnswer(
+                new Answer<QueryResponse>() {
+                    @Override
+                    public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                        String query = ((SolrQuery) invocation.getArguments()[0]).getQuery();
+                        int page = queries.size();
+                        queries.add(query);
+                        SolrDocumentList results = new SolrDocumentList();
+                        for (int i = page * 10; i < Math.min(page * 10 + 10, hits); i++) {
+                            SolrDocument result = new SolrDocument();
+                            result.setField(SBOIEventIndex.UUID, String.format("uuid:%02d", i));
+                            result.setField(SolrProxyIterator.LAST_MODIFIED, "2014-01-02T03:04:05.678Z");
+                            result.setField(SolrProxyIterator.SORT_DATE, "2014-01-01T00:00:00.000Z");
+                            results.add(result);
+                        }
+                        QueryResponse response = mock(QueryResponse.class);
+                        when(response.getResults()).thenReturn(results);
+                        return response;
+                    }
+                });
+        return summaSearch;
+    }
 }
\ No newline at end of file
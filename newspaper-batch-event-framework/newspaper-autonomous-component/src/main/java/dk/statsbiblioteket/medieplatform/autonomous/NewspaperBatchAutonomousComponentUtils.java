@@ -44,4 +44,22 @@ public class NewspaperBatchAutonomousComponentUtils extends SBOIDomsAutonomousCo
                                                getEventTrigger(properties, itemFactory),
                                                getEventStorer(properties, itemFactory));
     }
+
+    /**
+     * Create an autonomous component from a runnable component and run it as a daemon, polling for work every
+     * autonomous.pollInterval milliseconds. This method blocks until the JVM is shut down.
+     *
+     * @param properties the properties to use
+     * @param component  the runnable component to invoke
+     *
+     * @see AutonomousComponentUtils#startAutonomousComponentDaemon(java.util.Properties, RunnableComponent,
+     * EventTrigger, EventStorer)
+     */
+    public static void startAutonomousComponentDaemon(Properties properties, RunnableComponent<Batch> component) {
+        BatchItemFactory itemFactory = new BatchItemFactory();
+        startAutonomousComponentDaemon(properties,
+                                       component,
+                                       getEventTrigger(properties, itemFactory),
+                                       getEventStorer(properties, itemFactory));
+    }
 }
@@ -12,6 +12,7 @@ import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
 import dk.statsbiblioteket.doms.central.connectors.EnhancedFedoraImpl;
 import dk.statsbiblioteket.doms.central.connectors.fedora.pidGenerator.PIDGeneratorException;
 import dk.statsbiblioteket.sbutil.webservices.authentication.Credentials;
+import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.CancellableTreeIterator;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.TreeIterator;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.fedora3.ConfigurableFilter;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.fedora3.IteratorForFedora3;
@@ -19,10 +20,14 @@ import dk.statsbiblioteket.medieplatform.autonomous.iterator.filesystem.transfor
 import dk.statsbiblioteket.util.Streams;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,6 +35,7 @@ import java.net.MalformedURLException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 
 /**
@@ -37,7 +43,8 @@ import java.util.regex.Pattern;
  * and provides access to a tree iterator.
  */
 @SuppressWarnings("deprecation")//Credentials
-public abstract class TreeProcessorAbstractRunnableComponent extends AbstractRunnableComponent<Batch> {
+public abstract class TreeProcessorAbstractRunnableComponent extends AbstractRunnableComponent<Batch>
+        implements ItemCostEstimator<Batch> {
     private static final String BATCH_STRUCTURE = "BATCHSTRUCTURE";
     private EnhancedFedora fedora;
     private Logger log = LoggerFactory.getLogger(getClass());
@@ -110,6 +117,37 @@ public abstract class TreeProcessorAbstractRunnableComponent extends AbstractRun
         }
     }
 
+    /**
+     * Create a tree iterator for the given batch, which stops the iteration by throwing a
+     * {@link java.util.concurrent.CancellationException} when the work on the batch is cancelled.
+     *
+     * @param batch             the batch
+     * @param cancellationToken the token telling when to stop the iteration
+     *
+     * @return a tree iterator
+     * @see #createIterator(Batch)
+     */
+    protected TreeIterator createIterator(Batch batch, CancellationToken cancellationToken) {
+        return new CancellableTreeIterator(createIterator(batch), cancellationToken);
+    }
+
+    /**
+     * Create an executor for running the subtrees forked by a
+     * {@link dk.statsbiblioteket.medieplatform.autonomous.iterator.eventhandlers.MultiThreadedEventRunner}.
+     * If the property "autonomous.virtualThreads" is true, and the JVM supports virtual threads, each subtree runs on
+     * a virtual thread, and at most maxConcurrent subtrees are worked on at the same time. Otherwise a pool of
+     * maxConcurrent threads is used.
+     *
+     * @param maxConcurrent the max number of subtrees to work on at the same time
+     *
+     * @return the executor. The caller must shut it down when done
+     */
+    protected ExecutorService createExecutor(int maxConcurrent) {
+        boolean virtualThreads = Boolean.parseBoolean(
+                getProperties().getProperty(ConfigConstants.AUTONOMOUS_VIRTUAL_THREADS, "false"));
+        return BoundedExecutorService.newBoundedExecutor(maxConcurrent, virtualThreads);
+    }
+
     /**
      * Retrieve the batch structure from DOMS or from the file system.
      * If the property "batchStructure.useFileSystem" is true (default), retrieve the structure from the
@@ -191,6 +229,39 @@ public abstract class TreeProcessorAbstractRunnableComponent extends AbstractRun
 
     }
 
+    /**
+     * Estimate the cost of working on a batch, as the number of nodes in the stored batch structure. The number of
+     * nodes grows with the number of files in the batch, which is what most tree processing components spend their
+     * time on.
+     *
+     * @param batch the batch in question
+     *
+     * @return the number of nodes in the batch structure, or 0 if no batch structure have been stored for the batch
+     */
+    @Override
+    public long estimateCost(Batch batch) {
+        try (InputStream batchStructure = retrieveBatchStructure(batch)) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(batchStructure);
+            try {
+                long nodes = 0;
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamReader.START_ELEMENT) {
+                        nodes++;
+                    }
+                }
+                return nodes;
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            log.debug("No batch structure stored for batch '{}', so the cost is unknown", batch.getFullID());
+            return 0;
+        } catch (IOException | XMLStreamException | InitialisationException e) {
+            log.warn("Unable to read the batch structure of batch '{}', so the cost is unknown", batch.getFullID(), e);
+            return 0;
+        }
+    }
+
     /**
      * Utility method to get the round trip object for a given batch
      *
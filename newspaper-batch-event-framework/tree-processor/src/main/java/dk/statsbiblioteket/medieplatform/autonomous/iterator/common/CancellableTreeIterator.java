@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.medieplatform.autonomous.iterator.common;
+
+import dk.statsbiblioteket.medieplatform.autonomous.CancellationToken;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tree iterator that stops the iteration when the work on the tree have been cancelled. All other operations are
+ * delegated to the wrapped iterator. Sub iterators created by {@link #skipToNextSibling()} are cancelled by the same
+ * token.
+ */
+public class CancellableTreeIterator implements TreeIterator {
+
+    private final TreeIterator delegate;
+    private final CancellationToken cancellationToken;
+
+    /**
+     * Wrap a tree iterator
+     *
+     * @param delegate          the iterator to wrap
+     * @param cancellationToken the token telling when to stop the iteration
+     */
+    public CancellableTreeIterator(TreeIterator delegate, CancellationToken cancellationToken) {
+        this.delegate = delegate;
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * @throws CancellationException if the work have been cancelled
+     */
+    @Override
+    public TreeIterator skipToNextSibling() {
+        cancellationToken.throwIfCancelled();
+        return new CancellableTreeIterator(delegate.skipToNextSibling(), cancellationToken);
+    }
+
+    /**
+     * @throws CancellationException if the work have been cancelled
+     */
+    @Override
+    public boolean hasNext() {
+        cancellationToken.throwIfCancelled();
+        return delegate.hasNext();
+    }
+
+    /**
+     * @throws CancellationException if the work have been cancelled
+     */
+    @Override
+    public ParsingEvent next() {
+        cancellationToken.throwIfCancelled();
+        return delegate.next();
+    }
+
+    @Override
+    public void remove() {
+        delegate.remove();
+    }
+}
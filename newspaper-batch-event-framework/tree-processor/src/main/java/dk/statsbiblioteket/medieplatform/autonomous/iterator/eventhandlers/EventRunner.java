@@ -1,5 +1,7 @@
 package dk.statsbiblioteket.medieplatform.autonomous.iterator.eventhandlers;
 
+import dk.statsbiblioteket.medieplatform.autonomous.CancellationToken;
+import dk.statsbiblioteket.medieplatform.autonomous.Checkpoint;
 import dk.statsbiblioteket.medieplatform.autonomous.ResultCollector;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.AttributeParsingEvent;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.NodeBeginsParsingEvent;
@@ -9,6 +11,7 @@ import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.TreeIterator
 import org.slf4j.Logger;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 public class EventRunner implements Runnable {
 
@@ -19,11 +22,20 @@ public class EventRunner implements Runnable {
     protected TreeIterator iterator;
     protected final List<TreeEventHandler> eventHandlers;
     protected final ResultCollector resultCollector;
+    protected final CancellationToken cancellationToken;
 
     private boolean spawn = false;
 
+    /**
+     * The number of nodes begun, but not yet ended
+     */
+    private int depth = 0;
+    private int checkpointDepth = DEFAULT_CHECKPOINT_DEPTH;
 
-
+    /**
+     * The default number of levels below the root node that are checkpointed
+     */
+    public static final int DEFAULT_CHECKPOINT_DEPTH = 2;
 
     /**
      * Initialise the EventRunner with a tree iterator.
@@ -33,9 +45,23 @@ public class EventRunner implements Runnable {
      * @param resultCollector the result collector
      */
     public EventRunner(TreeIterator iterator, List<TreeEventHandler> eventHandlers, ResultCollector resultCollector) {
+        this(iterator, eventHandlers, resultCollector, new CancellationToken());
+    }
+
+    /**
+     * Initialise the EventRunner with a tree iterator, and a token to stop the run when the work is cancelled.
+     *
+     * @param iterator The tree iterator to run events on.
+     * @param eventHandlers eventhandler to hande the events encountered
+     * @param resultCollector the result collector
+     * @param cancellationToken the token telling when to stop the run
+     */
+    public EventRunner(TreeIterator iterator, List<TreeEventHandler> eventHandlers, ResultCollector resultCollector,
+                       CancellationToken cancellationToken) {
         this.iterator = iterator;
         this.eventHandlers = eventHandlers;
         this.resultCollector = resultCollector;
+        this.cancellationToken = cancellationToken;
     }
 
     /**
@@ -54,15 +80,56 @@ public class EventRunner implements Runnable {
         this.spawn = spawn;
     }
 
+    /**
+     * Initialise the EventRunner. This constructor should only be used by the
+     * MultithreadEventRunner
+     *
+     * @param iterator The tree iterator to run events on.
+     * @param eventHandlers eventhandler to hande the events encountered
+     * @param resultCollector the result collector
+     * @param spawn if true, do not run handleFinish
+     * @param cancellationToken the token telling when to stop the run
+     *
+     * @see dk.statsbiblioteket.medieplatform.autonomous.iterator.eventhandlers.MultiThreadedEventRunner
+     */
+    protected EventRunner(TreeIterator iterator, List<TreeEventHandler> eventHandlers, ResultCollector resultCollector,
+                          boolean spawn, CancellationToken cancellationToken) {
+        this(iterator, eventHandlers, resultCollector, cancellationToken);
+        this.spawn = spawn;
+    }
+
+
+    /**
+     * Set the number of levels below the root node, where completed subtrees are recorded in the checkpoint of the
+     * result collector. For a batch, level one is the films and level two is the editions. Subtrees in the checkpoint
+     * are skipped, so the run resumes after the last completed subtree. Nothing is checkpointed if the result
+     * collector has no checkpoint.
+     *
+     * @param checkpointDepth the number of levels checkpointed
+     */
+    public void setCheckpointDepth(int checkpointDepth) {
+        this.checkpointDepth = checkpointDepth;
+    }
+
+    /**
+     * Continue the run of a parent runner in a subtree forked from it, by continuing from the depth of the parent.
+     *
+     * @param parent the runner the subtree was forked from
+     */
+    void continueFrom(EventRunner parent) {
+        this.depth = parent.depth;
+        this.checkpointDepth = parent.checkpointDepth;
+    }
 
     /**
      * Trigger all the given event handlers on all events of the iterator.
     *
-     * @throws java.io.IOException
+     * @throws CancellationException if the run was cancelled before all events have been handled
      */
     public void run()  {
         ParsingEvent current = null;
         while (iterator.hasNext()) {
+            cancellationToken.throwIfCancelled();
             current = popInjectedEvent();
             if (current == null) {
                 current = iterator.next();
@@ -154,9 +221,18 @@ public class EventRunner implements Runnable {
                         UNEXPECTED_ERROR + e.toString());
             }
         }
+        Checkpoint checkpoint = getCheckpoint();
+        if (checkpoint != null && isCheckpointed(depth)) {
+            checkpoint.markCompleted(current.getName(), resultCollector.getFailuresIn(current.getName()));
+        }
+        depth--;
     }
 
     public void handleNodeBegins(NodeBeginsParsingEvent current) {
+        if (skipIfCompleted(current)) {
+            return;
+        }
+        depth++;
         for (TreeEventHandler handler : eventHandlers) {
             try {
                 handler.handleNodeBegin(current);
@@ -169,4 +245,30 @@ public class EventRunner implements Runnable {
             }
         }
     }
+
+    /**
+     * Skip the subtree beginning with the given node, if it was completed in a previous run. The failures found in the
+     * subtree are restored from the checkpoint before the run.
+     *
+     * @param current the node begins event
+     *
+     * @return true if the subtree was skipped, and should not be handled
+     */
+    protected boolean skipIfCompleted(NodeBeginsParsingEvent current) {
+        Checkpoint checkpoint = getCheckpoint();
+        if (checkpoint != null && isCheckpointed(depth + 1) && checkpoint.isCompleted(current.getName())) {
+            log.debug("Skipping {}, completed in a previous run", current.getName());
+            iterator.skipToNextSibling();
+            return true;
+        }
+        return false;
+    }
+
+    private Checkpoint getCheckpoint() {
+        return resultCollector == null ? null : resultCollector.getCheckpoint();
+    }
+
+    private boolean isCheckpointed(int level) {
+        return level > 1 && level <= 1 + checkpointDepth;
+    }
 }
@@ -1,5 +1,6 @@
 package dk.statsbiblioteket.medieplatform.autonomous.iterator.eventhandlers;
 
+import dk.statsbiblioteket.medieplatform.autonomous.CancellationToken;
 import dk.statsbiblioteket.medieplatform.autonomous.ResultCollector;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.NodeBeginsParsingEvent;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.NodeEndParsingEvent;
@@ -9,6 +10,7 @@ import dk.statsbiblioteket.util.Strings;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -23,7 +25,13 @@ public class MultiThreadedEventRunner extends EventRunner {
 
     public MultiThreadedEventRunner(TreeIterator iterator, List<TreeEventHandler> eventHandlers,
                                     ResultCollector resultCollector, EventCondition forker, ExecutorService executor) {
-        super(iterator, eventHandlers, resultCollector);
+        this(iterator, eventHandlers, resultCollector, forker, executor, new CancellationToken());
+    }
+
+    public MultiThreadedEventRunner(TreeIterator iterator, List<TreeEventHandler> eventHandlers,
+                                    ResultCollector resultCollector, EventCondition forker, ExecutorService executor,
+                                    CancellationToken cancellationToken) {
+        super(iterator, eventHandlers, resultCollector, cancellationToken);
         this.forker = forker;
         this.executor = executor;
     }
@@ -35,13 +43,17 @@ public class MultiThreadedEventRunner extends EventRunner {
 
     @Override
     public void handleNodeBegins(NodeBeginsParsingEvent current) {
+        if (skipIfCompleted(current)) {
+            return;
+        }
         if (forker.shouldFork(current)) {
             //any further will spawn sub iterators
             //Skip to next sibling will branch of the iterator that began with this node begins
             //It will then return than iterator.
             //And the iterator where this was called will skip to the next node begins that was not this tree
             TreeIterator childIterator = iterator.skipToNextSibling();
-            EventRunner childRunner = new EventRunner(childIterator,eventHandlers,resultCollector,true);
+            EventRunner childRunner = new EventRunner(childIterator,eventHandlers,resultCollector,true,cancellationToken);
+            childRunner.continueFrom(this);
             Future<?> future = executor.submit(childRunner);
             childTasks.add(future);
         } else {
@@ -56,8 +68,11 @@ public class MultiThreadedEventRunner extends EventRunner {
         if (forker.shouldJoin(current)) {
             for (Future<?> childTask : childTasks) {
                 try {
+                    if (cancellationToken.isCancelled()) {
+                        childTask.cancel(true);
+                    }
                     childTask.get();
-                } catch (InterruptedException | ExecutionException e) {
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
                     resultCollector.addFailure(current.getName(), EventRunner.EXCEPTION,
                             this.getClass().getSimpleName(), EventRunner.UNEXPECTED_ERROR + e.toString(),
                             Strings.getStackTrace(e));
@@ -1,5 +1,8 @@
 package dk.statsbiblioteket.medieplatform.autonomous.iterator.eventhandlers;
 
+import dk.statsbiblioteket.medieplatform.autonomous.CancellationToken;
+import dk.statsbiblioteket.medieplatform.autonomous.Checkpoint;
+import dk.statsbiblioteket.medieplatform.autonomous.ResultCollector;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.AttributeParsingEvent;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.NodeBeginsParsingEvent;
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.NodeEndParsingEvent;
@@ -7,10 +10,14 @@ import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.ParsingEvent
 import dk.statsbiblioteket.medieplatform.autonomous.iterator.common.TreeIterator;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -21,6 +28,27 @@ import static org.mockito.Mockito.when;
 /** Test of the EventRunner class. */
 public class EventRunnerTest {
 
+    /**
+     * Verifies that the run stops, without handling further events or finishing, when the work have been cancelled.
+     */
+    @Test(expectedExceptions = CancellationException.class)
+    public void testCancelledRunStops() throws Exception {
+        TreeIterator treeIteratorMock = mock(TreeIterator.class);
+        when(treeIteratorMock.hasNext()).thenReturn(true);
+        TreeEventHandler treeEventHandlerMock = mock(TreeEventHandler.class);
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel();
+
+        List<TreeEventHandler> eventHandlers = Arrays.asList(new TreeEventHandler[]{treeEventHandlerMock});
+        EventRunner batchStructureCheckerUT = new EventRunner(treeIteratorMock, eventHandlers, null,
+                                                              cancellationToken);
+        try {
+            batchStructureCheckerUT.run();
+        } finally {
+            verifyNoMoreInteractions(treeEventHandlerMock);
+        }
+    }
+
     /**
      * Verifies that the BatchStructureChecker correctly passes the event for a simple batch with two leafs
      * to the attached event handlers.
@@ -136,6 +164,74 @@ public class EventRunnerTest {
         verifyNoMoreInteractions(treeEventHandlerMock);
     }
 
+    /**
+     * Verifies that completed subtrees below the root are checkpointed with their failures, and skipped, with their
+     * failures restored, when the run is resumed.
+     */
+    @Test
+    public void testCheckpointAndResume() throws Exception {
+        final Map<String, ResultCollector> completed = new HashMap<>();
+        Checkpoint checkpoint = new Checkpoint() {
+            @Override
+            public boolean isCompleted(String subtree) {
+                return completed.containsKey(subtree);
+            }
+
+            @Override
+            public void markCompleted(String subtree, ResultCollector failures) {
+                completed.put(subtree, failures);
+            }
+
+            @Override
+            public void restoreInto(ResultCollector resultCollector) {
+                for (ResultCollector failures : completed.values()) {
+                    failures.mergeInto(resultCollector);
+                }
+            }
+
+            @Override
+            public void clear() {
+                completed.clear();
+            }
+        };
+
+        //First run, where the date node fails
+        TreeIterator treeIteratorMock = mock(TreeIterator.class);
+        when(treeIteratorMock.hasNext()).thenReturn(true, true, true, true, true, true, false);
+        NodeBeginsParsingEvent batchNodeBegin = new NodeBeginsParsingEvent("Batch", null);
+        NodeBeginsParsingEvent reelNodeBegin = new NodeBeginsParsingEvent("Batch/Reel", null);
+        NodeBeginsParsingEvent dateNodeBegin = new NodeBeginsParsingEvent("Batch/Reel/Date", null);
+        NodeEndParsingEvent dateNodeEnd = new NodeEndParsingEvent("Batch/Reel/Date", null);
+        NodeEndParsingEvent reelNodeEnd = new NodeEndParsingEvent("Batch/Reel", null);
+        NodeEndParsingEvent batchNodeEnd = new NodeEndParsingEvent("Batch", null);
+        when(treeIteratorMock.next()).thenReturn(batchNodeBegin, reelNodeBegin, dateNodeBegin, dateNodeEnd,
+                                                 reelNodeEnd, batchNodeEnd);
+        ResultCollector resultCollector = new ResultCollector("test", "1.0");
+        resultCollector.setCheckpoint(checkpoint);
+        resultCollector.addFailure("Batch/Reel/Date", "metadata", "test", "Bad date");
+        new EventRunner(treeIteratorMock, Arrays.<TreeEventHandler>asList(), resultCollector).run();
+
+        Assert.assertEquals(completed.keySet().size(), 2, "Only the reel and date nodes should be checkpointed");
+        Assert.assertFalse(completed.get("Batch/Reel").isSuccess());
+
+        //Resumed run, where the reel node should be skipped
+        TreeIterator resumedIteratorMock = mock(TreeIterator.class);
+        when(resumedIteratorMock.hasNext()).thenReturn(true, true, true, false);
+        when(resumedIteratorMock.next()).thenReturn(batchNodeBegin, reelNodeBegin, batchNodeEnd);
+        TreeEventHandler treeEventHandlerMock = mock(TreeEventHandler.class);
+        ResultCollector resumedResultCollector = new ResultCollector("test", "1.0");
+        checkpoint.restoreInto(resumedResultCollector);
+        resumedResultCollector.setCheckpoint(checkpoint);
+        new EventRunner(resumedIteratorMock, Arrays.asList(treeEventHandlerMock), resumedResultCollector).run();
+
+        verify(resumedIteratorMock).skipToNextSibling();
+        verify(treeEventHandlerMock).handleNodeBegin(batchNodeBegin);
+        verify(treeEventHandlerMock).handleNodeEnd(batchNodeEnd);
+        verify(treeEventHandlerMock).handleFinish();
+        verifyNoMoreInteractions(treeEventHandlerMock);
+        Assert.assertFalse(resumedResultCollector.isSuccess(), "Failures of the skipped subtree were not restored");
+    }
+
     /** @return Creates a attribute event and marks is as type 'Attribute'. */
     private AttributeParsingEvent createAttributeParsingEventStub(final String name) {
         AttributeParsingEvent event = mock(AttributeParsingEvent.class);